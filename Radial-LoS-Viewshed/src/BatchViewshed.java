@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * Viewsheds of many observers that share one DEM. The union of the tiles of all observers is set up once as a
+ * lazily loaded mosaic, every observer works on the window of its own radius within it, and the rays of all
+ * observers run on one shared fork-join pool. Each result is handed to the listener as soon as its observer
+ * is finished, on the worker thread that finished it, so the listener must be thread safe.
+ * <p>
+ * All observers are georeferenced on the grid of the union of their tiles.
+ * <p>
+ * Any {@link ViewshedEngine} can calculate the viewsheds. With the {@link RayTemplateEngine} the observers are
+ * ordered by template, so each template is traced once and reused while it is cached.
+ */
+public class BatchViewshed {
+
+    private static final int TILE_SIZE = 3601;
+
+    /**
+     * Calculate the viewsheds of several observers
+     * @param requests the observers with their own height, radius, target height and mode
+     * @param numThreads number of threads
+     * @param listener receives each request together with its result as soon as it is finished
+     */
+    public static void viewshed(List<ViewshedRequest> requests, int numThreads, BiConsumer<ViewshedRequest, ViewshedResult> listener) {
+        viewshed(requests, numThreads, listener, new R3Engine());
+    }
+
+    /**
+     * Calculate the viewsheds of several observers
+     * @param requests the observers with their own height, radius, target height and mode
+     * @param numThreads number of threads
+     * @param listener receives each request together with its result as soon as it is finished
+     * @param useRayTemplates whether to replay the rays from {@link RayTemplate}s (faster, approximate)
+     */
+    public static void viewshed(List<ViewshedRequest> requests, int numThreads, BiConsumer<ViewshedRequest, ViewshedResult> listener,
+                                boolean useRayTemplates) {
+        viewshed(requests, numThreads, listener, useRayTemplates ? new RayTemplateEngine() : new R3Engine());
+    }
+
+    /**
+     * Calculate the viewsheds of several observers
+     * @param requests the observers with their own height, radius, target height and mode
+     * @param numThreads number of threads
+     * @param listener receives each request together with its result as soon as it is finished
+     * @param engine viewshed algorithm
+     */
+    public static void viewshed(List<ViewshedRequest> requests, int numThreads, BiConsumer<ViewshedRequest, ViewshedResult> listener,
+                                ViewshedEngine engine) {
+        boolean useRayTemplates = engine instanceof RayTemplateEngine;
+        long start = System.currentTimeMillis();
+        RasterUtils ru = new RasterUtils(TILE_SIZE);
+        SpatialUtils su = new SpatialUtils(ru);
+
+        // tiles are only read from disk when a ray of any observer first touches them
+        GridWindow tiles = GridWindow.forObservers(su, requests, TILE_SIZE);
+        DemMosaic dem = tiles.createMosaic();
+        System.out.println("Batch of " + requests.size() + " observers over " + tiles.getTileColumns() + "x" + tiles.getTileRows() + " tiles");
+
+        List<ViewshedRequest> ordered = requests;
+        if (useRayTemplates) {
+            // observers that share a template run one after the other
+            tiles.applyTo(su);
+            Map<ViewshedRequest, String> keys = new HashMap<>();
+            for (ViewshedRequest request : requests) {
+                double[] xy = su.getXY(request.getLongitude(), request.getLatitude());
+                keys.put(request, RayTemplateCache.getKey(request.getLatitude(), xy[0], xy[1], request.getRadius()));
+            }
+            ordered = new ArrayList<>(requests);
+            ordered.sort(Comparator.comparing(keys::get));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        List<ObserverTask> tasks = new ArrayList<>();
+        for (ViewshedRequest request : ordered) {
+            GridWindow window = tiles.cropToRadius(su, request.getLongitude(), request.getLatitude(), request.getRadius());
+            ObserverTask task = new ObserverTask(request, window, window.getView(dem), ru, numThreads, engine, listener);
+            tasks.add(task);
+            pool.execute(task);
+        }
+        for (ObserverTask task : tasks) {
+            task.join();
+        }
+        pool.shutdown();
+
+        long duration = System.currentTimeMillis() - start;
+        System.out.println("Time taken to calculate " + requests.size() + " viewsheds: " + duration + " milliseconds ("
+                + (requests.size() * 1000.0 / Math.max(1, duration)) + " observers per second)");
+        System.out.println("DEM tiles loaded: " + dem.getLoadedTileCount() + " | " + DemTileCache.getInstance());
+        if (useRayTemplates) System.out.println(RayTemplateCache.getInstance());
+    }
+
+    /**
+     * The viewshed of one observer. The engine runs its nested tasks on the same pool.
+     */
+    private static class ObserverTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ViewshedRequest request;
+        private final GridWindow window;
+        private final DemMosaic dem;
+        private final RasterUtils ru;
+        private final int parallelism;
+        private final ViewshedEngine engine;
+        private final BiConsumer<ViewshedRequest, ViewshedResult> listener;
+
+        ObserverTask(ViewshedRequest request, GridWindow window, DemMosaic dem, RasterUtils ru, int parallelism,
+                     ViewshedEngine engine, BiConsumer<ViewshedRequest, ViewshedResult> listener) {
+            this.request = request;
+            this.window = window;
+            this.dem = dem;
+            this.ru = ru;
+            this.parallelism = parallelism;
+            this.engine = engine;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            SpatialUtils su = new SpatialUtils(ru);
+            window.applyTo(su);
+            su.initializeResult(request.getMode());
+            ObserverGeometry geometry = new ObserverGeometry(su, request.getObserver());
+            ViewshedEvent event = new ViewshedEvent();
+            // the counters are only worth their cost while a recording listens
+            WorkerStatistics statistics = event.isEnabled() ? new WorkerStatistics(getPool().getParallelism()) : null;
+            event.begin();
+            engine.calculate(su, geometry, dem, request.getRadius(), request.getTargetHeight(), request.getMode(), parallelism, statistics);
+            event.end();
+            if (event.shouldCommit()) {
+                event.engine = engine.getName();
+                event.longitude = request.getObserver().getLongitude();
+                event.latitude = request.getObserver().getLatitude();
+                event.radius = request.getRadius();
+                event.mode = request.getMode();
+                if (statistics != null) {
+                    event.rays = statistics.getTotalRays();
+                    event.cells = statistics.getTotalCells();
+                    event.writes = statistics.getTotalWrites();
+                }
+                event.commit();
+            }
+            listener.accept(request, su.getResult());
+        }
+    }
+}
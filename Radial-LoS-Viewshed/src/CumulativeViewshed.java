@@ -0,0 +1,118 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cumulative (total) viewshed: for every cell the number of observers that see it, or the sum of their weights.
+ * The observers run as a {@link BatchViewshed} in mode 1 and each finished visibility bitset is added into one
+ * shared grid with lock-free atomic adds, so an observer counts a cell once no matter how many of its rays see it.
+ * Memory is the shared grid over the union of the observer windows (4 bytes per cell) plus the bitsets of the
+ * observers in flight and the tiles in the {@link DemTileCache}, independently of the number of observers.
+ */
+public class CumulativeViewshed {
+
+    private static final VarHandle SUMS = MethodHandles.arrayElementVarHandle(float[].class);
+    private static final int TILE_SIZE = 3601;
+
+    private final GridWindow window;
+    private final float[] sums;
+    private final double lonStep;
+    private final double latStep;
+
+    public CumulativeViewshed(GridWindow window) {
+        this.window = window;
+        this.sums = new float[window.getWidth() * window.getHeight()];
+        this.lonStep = (window.getMaxLon() - window.getMinLon()) / window.getWidth();
+        this.latStep = (window.getMaxLat() - window.getMinLat()) / window.getHeight();
+    }
+
+    /**
+     * Calculate the cumulative viewshed of several observers
+     * @param requests the observers (must be mode 1)
+     * @param weights weight of every observer, or null to count observers
+     * @param numThreads number of threads
+     * @return the cumulative viewshed over the union of the windows of all observers
+     */
+    public static CumulativeViewshed viewshed(List<ViewshedRequest> requests, double[] weights, int numThreads) {
+        if (weights != null && weights.length != requests.size()) {
+            throw new IllegalArgumentException("Expected " + requests.size() + " weights but got " + weights.length);
+        }
+        SpatialUtils su = new SpatialUtils(new RasterUtils(TILE_SIZE));
+        GridWindow tiles = GridWindow.forObservers(su, requests, TILE_SIZE);
+        GridWindow union = null;
+        Map<ViewshedRequest, Float> weightOf = new IdentityHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            ViewshedRequest request = requests.get(i);
+            if (request.getMode() != 1) {
+                throw new IllegalArgumentException("Cumulative viewsheds need mode 1 requests: " + request);
+            }
+            GridWindow window = tiles.cropToRadius(su, request.getLongitude(), request.getLatitude(), request.getRadius());
+            union = union == null ? window : union.union(window);
+            weightOf.put(request, weights == null ? 1.0f : (float) weights[i]);
+        }
+        CumulativeViewshed cumulative = new CumulativeViewshed(union);
+        System.out.println("Cumulative grid width: " + union.getWidth() + " | Grid height: " + union.getHeight());
+        BatchViewshed.viewshed(requests, numThreads, (request, result) -> cumulative.add(result, weightOf.get(request)));
+        return cumulative;
+    }
+
+    /**
+     * Add the visible cells of a result to the grid. Safe to call from many threads at once.
+     * @param result mode 1 result whose window lies on the same tile grid
+     * @param weight value added to every visible cell
+     */
+    public void add(ViewshedResult result, float weight) {
+        int offsetX = (int) Math.round((result.getMinLon() - window.getMinLon()) / lonStep);
+        int offsetY = (int) Math.round((window.getMaxLat() - result.getMaxLat()) / latStep);
+        int width = window.getWidth();
+        for (int y = 0; y < result.getHeight(); y++) {
+            int row = y + offsetY;
+            if (row < 0 || row >= window.getHeight()) continue;
+            for (int x = 0; x < result.getWidth(); x++) {
+                int column = x + offsetX;
+                if (column < 0 || column >= width || !result.isVisible(x, y)) continue;
+                addAtomic(row * width + column, weight);
+            }
+        }
+    }
+
+    private void addAtomic(int index, float weight) {
+        float current = (float) SUMS.getOpaque(sums, index);
+        while (!SUMS.weakCompareAndSet(sums, index, current, current + weight)) {
+            current = (float) SUMS.getOpaque(sums, index);
+        }
+    }
+
+    /**
+     * @return number (or weight sum) of the observers that see the cell
+     */
+    public float getSum(int x, int y) {
+        return sums[y * window.getWidth() + x];
+    }
+
+    public int getWidth() {
+        return window.getWidth();
+    }
+
+    public int getHeight() {
+        return window.getHeight();
+    }
+
+    public double getMinLon() {
+        return window.getMinLon();
+    }
+
+    public double getMaxLon() {
+        return window.getMaxLon();
+    }
+
+    public double getMinLat() {
+        return window.getMinLat();
+    }
+
+    public double getMaxLat() {
+        return window.getMaxLat();
+    }
+}
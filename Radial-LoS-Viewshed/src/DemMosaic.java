@@ -0,0 +1,246 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Virtual mosaic of 1x1 degree DEM tiles. Global pixel coordinates are mapped to the backing tile,
+ * which is fetched from the {@link DemTileCache} the first time one of its pixels is requested.
+ * Tiles without a DEM file share {@link DemTile#EMPTY}, so regions at sea level cost no memory.
+ */
+public class DemMosaic {
+
+    private final int westLon;
+    private final int northLat;
+    private final int tileColumns;
+    private final int tileRows;
+    private final int tileSize;
+    private final AtomicReferenceArray<DemTile> tiles;
+    private final Object[] locks;
+    // size of the DEM files read from disk for this mosaic, not counting tiles that came from the cache
+    private final AtomicLong bytesRead;
+    // origin of the pixel coordinates within the tiles
+    private final int offsetX;
+    private final int offsetY;
+
+    /**
+     * @param westLon longitude of the western tile column
+     * @param northLat latitude of the northern tile row
+     * @param tileColumns number of tile columns (eastwards)
+     * @param tileRows number of tile rows (southwards)
+     * @param tileSize width/height of a single DEM tile in pixels
+     */
+    public DemMosaic(int westLon, int northLat, int tileColumns, int tileRows, int tileSize) {
+        this.westLon = westLon;
+        this.northLat = northLat;
+        this.tileColumns = tileColumns;
+        this.tileRows = tileRows;
+        this.tileSize = tileSize;
+        this.tiles = new AtomicReferenceArray<>(tileColumns * tileRows);
+        this.locks = new Object[tileColumns * tileRows];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.bytesRead = new AtomicLong();
+        this.offsetX = 0;
+        this.offsetY = 0;
+    }
+
+    private DemMosaic(DemMosaic mosaic, int offsetX, int offsetY) {
+        this.westLon = mosaic.westLon;
+        this.northLat = mosaic.northLat;
+        this.tileColumns = mosaic.tileColumns;
+        this.tileRows = mosaic.tileRows;
+        this.tileSize = mosaic.tileSize;
+        this.tiles = mosaic.tiles;
+        this.locks = mosaic.locks;
+        this.bytesRead = mosaic.bytesRead;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    /**
+     * Get a view of the mosaic whose pixel (0, 0) is the given pixel of the tiles. The view shares the tiles
+     * with this mosaic, so each tile is still loaded only once.
+     * @param offsetX column of the tiles that becomes column 0 of the view
+     * @param offsetY row of the tiles that becomes row 0 of the view
+     * @return the view
+     */
+    public DemMosaic window(int offsetX, int offsetY) {
+        return new DemMosaic(this, offsetX, offsetY);
+    }
+
+    public int getWidth() {
+        return tileColumns * tileSize;
+    }
+
+    public int getHeight() {
+        return tileRows * tileSize;
+    }
+
+    /**
+     * Get the DEM file of the tile whose south-western corner is at the given coordinates
+     * @param lat latitude of the tile
+     * @param lon longitude of the tile
+     * @return path of the DEM file
+     */
+    public static Path getTileFile(int lat, int lon) {
+        return getDemDirectory().resolve(String.format("Copernicus_DSM_10_N%s_00_E0%s_00_DEM.tif", lat, lon));
+    }
+
+    /**
+     * @return directory of the DEM files
+     */
+    public static Path getDemDirectory() {
+        return Paths.get("dem");
+    }
+
+    /**
+     * Get the elevation of a pixel, loading its tile if it is touched for the first time
+     * @param x column in the mosaic (relative to the offset of the view)
+     * @param y row in the mosaic (relative to the offset of the view)
+     * @return elevation in meters or 0.0 (sea level) outside the mosaic
+     */
+    public float getElevation(int x, int y) {
+        x += offsetX;
+        y += offsetY;
+        if (x < 0 || y < 0) return 0.0f;
+        int tileColumn = x / tileSize;
+        int tileRow = y / tileSize;
+        if (tileColumn >= tileColumns || tileRow >= tileRows) return 0.0f;
+        return getTile(tileRow * tileColumns + tileColumn).getElevation(x - tileColumn * tileSize, y - tileRow * tileSize);
+    }
+
+    /**
+     * Get the maximum elevation of the {@link ElevationPyramid} block of a level that contains a pixel.
+     * Blocks are aligned to their tile and never cross a tile border.
+     * @param level level of the pyramid
+     * @param x column in the mosaic (relative to the offset of the view)
+     * @param y row in the mosaic (relative to the offset of the view)
+     * @return maximum elevation in meters or 0.0 (sea level) outside the mosaic
+     */
+    public float getBlockMax(int level, int x, int y) {
+        x += offsetX;
+        y += offsetY;
+        if (x < 0 || y < 0) return 0.0f;
+        int tileColumn = x / tileSize;
+        int tileRow = y / tileSize;
+        if (tileColumn >= tileColumns || tileRow >= tileRows) return 0.0f;
+        return getTile(tileRow * tileColumns + tileColumn).getBlockMax(level, x - tileColumn * tileSize, y - tileRow * tileSize);
+    }
+
+    /**
+     * @return first column of the block of a level that contains the given column
+     */
+    public int getBlockStartX(int level, int x) {
+        return getBlockStart(level, x + offsetX) - offsetX;
+    }
+
+    /**
+     * @return column after the last column of the block of a level that contains the given column
+     */
+    public int getBlockEndX(int level, int x) {
+        return getBlockEnd(level, x + offsetX) - offsetX;
+    }
+
+    /**
+     * @return first row of the block of a level that contains the given row
+     */
+    public int getBlockStartY(int level, int y) {
+        return getBlockStart(level, y + offsetY) - offsetY;
+    }
+
+    /**
+     * @return row after the last row of the block of a level that contains the given row
+     */
+    public int getBlockEndY(int level, int y) {
+        return getBlockEnd(level, y + offsetY) - offsetY;
+    }
+
+    private int getBlockStart(int level, int pixel) {
+        int tileStart = pixel / tileSize * tileSize;
+        return tileStart + (((pixel - tileStart) >> level) << level);
+    }
+
+    private int getBlockEnd(int level, int pixel) {
+        int tileStart = pixel / tileSize * tileSize;
+        return Math.min(getBlockStart(level, pixel) + (1 << level), tileStart + tileSize);
+    }
+
+    /**
+     * Get an upper bound of the elevations in a rectangle: the maximum of the coarsest pyramid blocks that it touches
+     * @param x0 first column (relative to the offset of the view)
+     * @param y0 first row
+     * @param x1 last column (inclusive)
+     * @param y1 last row (inclusive)
+     * @return maximum elevation in meters
+     */
+    public float getMaxElevation(int x0, int y0, int x1, int y1) {
+        int level = ElevationPyramid.MAX_LEVEL;
+        float max = 0.0f;
+        for (int y = y0; y <= y1; y = getBlockEndY(level, y)) {
+            for (int x = x0; x <= x1; x = getBlockEndX(level, x)) {
+                max = Math.max(max, getBlockMax(level, x, y));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Set a tile of the mosaic explicitly, e.g. for synthetic DEMs
+     * @param tileColumn column of the tile in the mosaic (0 is the western tile)
+     * @param tileRow row of the tile in the mosaic (0 is the northern tile)
+     * @param tile the tile
+     */
+    public void setTile(int tileColumn, int tileRow, DemTile tile) {
+        tiles.set(tileRow * tileColumns + tileColumn, tile);
+    }
+
+    /**
+     * @return number of tiles that have been loaded so far
+     */
+    public int getLoadedTileCount() {
+        int count = 0;
+        for (int i = 0; i < tiles.length(); i++) {
+            if (tiles.get(i) != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the tiles that have been loaded so far, without the shared empty tile of missing DEM files
+     */
+    public List<DemTile> getLoadedTiles() {
+        List<DemTile> loaded = new ArrayList<>();
+        for (int i = 0; i < tiles.length(); i++) {
+            DemTile tile = tiles.get(i);
+            if (tile != null && tile != DemTile.EMPTY) loaded.add(tile);
+        }
+        return loaded;
+    }
+
+    /**
+     * @return size in bytes of the DEM files that were read from disk for this mosaic (and its views); tiles that
+     * came from the {@link DemTileCache} are not counted
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    private DemTile getTile(int index) {
+        DemTile tile = tiles.get(index);
+        return tile != null ? tile : loadTile(index);
+    }
+
+    private DemTile loadTile(int index) {
+        synchronized (locks[index]) {
+            DemTile tile = tiles.get(index);
+            if (tile != null) return tile;
+            tile = DemTileCache.getInstance().getTile(northLat - index / tileColumns, westLon + index % tileColumns, bytesRead);
+            tiles.set(index, tile);
+            return tile;
+        }
+    }
+}
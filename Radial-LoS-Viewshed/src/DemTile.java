@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A single decoded DEM tile stored as a row-major float array, together with the {@link ElevationPyramid}
+ * of its block maxima.
+ */
+public class DemTile {
+
+    /**
+     * Shared tile for DEM files that do not exist (sea level). It has no samples, so every lookup falls
+     * outside of it and returns zero.
+     */
+    public static final DemTile EMPTY = new DemTile(0, 0, new float[0]);
+
+    private final int width;
+    private final int height;
+    private final float[] heights;
+    private final ElevationPyramid pyramid;
+    // size of the file the tile was decoded from and the time the decoding took, 0 for tiles built in memory
+    private final long sourceBytes;
+    private final long loadNanos;
+
+    public DemTile(int width, int height, float[] heights) {
+        this(width, height, heights, 0, 0);
+    }
+
+    private DemTile(int width, int height, float[] heights, long sourceBytes, long loadNanos) {
+        this.width = width;
+        this.height = height;
+        this.heights = heights;
+        this.pyramid = new ElevationPyramid(heights, width, height);
+        this.sourceBytes = sourceBytes;
+        this.loadNanos = loadNanos;
+    }
+
+    /**
+     * Decode a GeoTIFF DEM file into a new tile
+     * @param file GeoTIFF DEM file
+     * @return the decoded tile
+     * @throws IOException if the file does not exist or cannot be decoded
+     */
+    public static DemTile load(Path file) throws IOException {
+        TileLoadEvent event = new TileLoadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        GeoTiffReader reader = new GeoTiffReader(file);
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        float[] heights = new float[width * height];
+        reader.readInto(heights, width, height, 0, 0);
+        long bytes = Files.size(file);
+        DemTile tile = new DemTile(width, height, heights, bytes, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.toString();
+            event.bytes = bytes;
+            event.width = width;
+            event.height = height;
+            event.commit();
+        }
+        return tile;
+    }
+
+    /**
+     * @return size in bytes of the file the tile was decoded from, 0 for tiles built in memory
+     */
+    public long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    /**
+     * @return time taken to decode the tile (including its pyramid) in nanoseconds, 0 for tiles built in memory
+     */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return size of the elevation samples and their pyramid in bytes
+     */
+    public long getSizeInBytes() {
+        return 4L * heights.length + pyramid.getSizeInBytes();
+    }
+
+    /**
+     * Get the elevation of a pixel of the tile
+     * @param x column in the tile
+     * @param y row in the tile
+     * @return elevation in meters or 0.0 (sea level) outside the tile
+     */
+    public float getElevation(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return 0.0f;
+        return heights[y * width + x];
+    }
+
+    /**
+     * Get the maximum elevation of the pyramid block of a level that contains a pixel
+     * @param level level of the {@link ElevationPyramid}
+     * @param x column in the tile
+     * @param y row in the tile
+     * @return maximum elevation in meters or 0.0 (sea level) outside the tile
+     */
+    public float getBlockMax(int level, int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return 0.0f;
+        return pyramid.getBlockMax(level, x, y);
+    }
+
+    /**
+     * @return maximum elevation of the tile (at least sea level)
+     */
+    public float getMaxElevation() {
+        return pyramid.getMax();
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of decoded DEM tiles keyed by the (lat, lon) of the tile. Tiles are evicted in
+ * least-recently-used order once the decoded size exceeds the memory budget. Concurrent requests for
+ * the same tile wait for a single load instead of decoding the file again.
+ * The budget defaults to the system property viewshed.tileCache.maxBytes (1 GiB if not set).
+ */
+public class DemTileCache {
+
+    private static final DemTileCache INSTANCE = new DemTileCache(Long.getLong("viewshed.tileCache.maxBytes", 1L << 30));
+
+    private final LinkedHashMap<Long, CompletableFuture<DemTile>> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long currentBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DemTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static DemTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a tile, loading it from disk if it is not cached
+     * @param lat latitude of the tile
+     * @param lon longitude of the tile
+     * @return the decoded tile or {@link DemTile#EMPTY} if there is no DEM file for it (sea level)
+     * @throws UncheckedIOException if the DEM file exists but cannot be read or decoded (the failure is not cached)
+     */
+    public DemTile getTile(int lat, int lon) {
+        return getTile(lat, lon, null);
+    }
+
+    /**
+     * Get a tile, loading it from disk if it is not cached
+     * @param lat latitude of the tile
+     * @param lon longitude of the tile
+     * @param bytesRead incremented by the size of the DEM file if this call reads it from disk (optional)
+     * @return the decoded tile or {@link DemTile#EMPTY} if there is no DEM file for it (sea level)
+     * @throws UncheckedIOException if the DEM file exists but cannot be read or decoded (the failure is not cached)
+     */
+    public DemTile getTile(int lat, int lon, AtomicLong bytesRead) {
+        Long key = getKey(lat, lon);
+        CompletableFuture<DemTile> future;
+        boolean owner = false;
+        synchronized (tiles) {
+            future = tiles.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                tiles.put(key, future);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            hits.incrementAndGet();
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        misses.incrementAndGet();
+        DemTile tile;
+        try {
+            tile = loadTile(lat, lon);
+        } catch (RuntimeException e) {
+            // do not keep failed loads so that the next request retries
+            synchronized (tiles) {
+                tiles.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+        if (bytesRead != null) bytesRead.addAndGet(tile.getSourceBytes());
+        synchronized (tiles) {
+            // completed and counted under the lock, so clear() cannot drop the tile in between and leave its bytes counted
+            future.complete(tile);
+            currentBytes += tile.getSizeInBytes();
+            evict(key);
+        }
+        return tile;
+    }
+
+    private DemTile loadTile(int lat, int lon) {
+        Path file = DemMosaic.getTileFile(lat, lon);
+        try {
+            DemTile tile = DemTile.load(file);
+            System.out.println("Loaded " + file);
+            return tile;
+        } catch (NoSuchFileException e) {
+            // this means that a DEM file does not exist because in the surveillance region all elevation data are zero (sea level)
+            System.out.println("File issue: " + file);
+            return DemTile.EMPTY;
+        } catch (IOException e) {
+            // a file that exists but cannot be decoded is not sea level, fail instead of caching a wrong tile
+            throw new UncheckedIOException("Cannot load DEM tile " + file, e);
+        }
+    }
+
+    /**
+     * Evict the least recently used tiles until the cache fits in its budget. Must hold the lock.
+     * @param keep key of the tile that has just been inserted
+     */
+    private void evict(Long keep) {
+        Iterator<Map.Entry<Long, CompletableFuture<DemTile>>> iterator = tiles.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Long, CompletableFuture<DemTile>> entry = iterator.next();
+            // tiles that are still being loaded have no size yet
+            if (entry.getKey().equals(keep) || !entry.getValue().isDone()) continue;
+            currentBytes -= entry.getValue().join().getSizeInBytes();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static Long getKey(int lat, int lon) {
+        return ((long) lat << 32) | (lon & 0xFFFFFFFFL);
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        synchronized (tiles) {
+            this.maxBytes = maxBytes;
+            evict(null);
+        }
+    }
+
+    public long getMaxBytes() {
+        synchronized (tiles) {
+            return maxBytes;
+        }
+    }
+
+    public long getCurrentBytes() {
+        synchronized (tiles) {
+            return currentBytes;
+        }
+    }
+
+    /**
+     * Remove all cached tiles, e.g. when the DEM files have changed
+     */
+    public void clear() {
+        synchronized (tiles) {
+            tiles.values().removeIf(CompletableFuture::isDone);
+            currentBytes = 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DemTileCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", bytes=" + getCurrentBytes() +
+                ", maxBytes=" + getMaxBytes() +
+                '}';
+    }
+}
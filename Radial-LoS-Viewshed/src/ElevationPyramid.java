@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/**
+ * Hierarchy of block maxima of a DEM tile (a max-quadtree stored level by level). Level k holds the maximum
+ * elevation of every aligned block of 2^k x 2^k pixels; blocks at the right and bottom border of the tile are
+ * partial. Rays use it to skip blocks that cannot rise above their current horizon without reading their pixels.
+ */
+public class ElevationPyramid {
+
+    /**
+     * Finest level (blocks of 32x32 pixels, small blocks cost more tests than they save)
+     */
+    public static final int MIN_LEVEL = 5;
+    /**
+     * Coarsest level (blocks of 256x256 pixels)
+     */
+    public static final int MAX_LEVEL = 8;
+
+    private final int[] widths;
+    private final float[][] levels;
+    private final float max;
+
+    /**
+     * Build the pyramid of a row-major elevation grid
+     * @param heights elevations
+     * @param width width of the grid
+     * @param height height of the grid
+     */
+    public ElevationPyramid(float[] heights, int width, int height) {
+        widths = new int[MAX_LEVEL - MIN_LEVEL + 1];
+        levels = new float[MAX_LEVEL - MIN_LEVEL + 1][];
+
+        // finest level straight from the pixels
+        int blockWidth = blocks(width, MIN_LEVEL);
+        int blockHeight = blocks(height, MIN_LEVEL);
+        float[] level = new float[blockWidth * blockHeight];
+        Arrays.fill(level, Float.NEGATIVE_INFINITY);
+        for (int y = 0; y < height; y++) {
+            int blockRow = (y >> MIN_LEVEL) * blockWidth;
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int index = blockRow + (x >> MIN_LEVEL);
+                float value = heights[row + x];
+                if (value > level[index]) level[index] = value;
+            }
+        }
+        widths[0] = blockWidth;
+        levels[0] = level;
+
+        // every coarser level from the 2x2 blocks of the previous one
+        for (int k = 1; k < levels.length; k++) {
+            int previousWidth = blockWidth;
+            int previousHeight = blockHeight;
+            float[] previous = level;
+            blockWidth = (previousWidth + 1) >> 1;
+            blockHeight = (previousHeight + 1) >> 1;
+            level = new float[blockWidth * blockHeight];
+            Arrays.fill(level, Float.NEGATIVE_INFINITY);
+            for (int y = 0; y < previousHeight; y++) {
+                for (int x = 0; x < previousWidth; x++) {
+                    int index = (y >> 1) * blockWidth + (x >> 1);
+                    level[index] = Math.max(level[index], previous[y * previousWidth + x]);
+                }
+            }
+            widths[k] = blockWidth;
+            levels[k] = level;
+        }
+
+        float overall = Float.NEGATIVE_INFINITY;
+        for (float value : level) overall = Math.max(overall, value);
+        // sea level outside of the grid
+        max = Math.max(overall, 0.0f);
+    }
+
+    private static int blocks(int pixels, int level) {
+        return (pixels + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Get the maximum elevation of the block of a level that contains a pixel
+     * @param level level between {@link #MIN_LEVEL} and {@link #MAX_LEVEL}
+     * @param x column of the pixel
+     * @param y row of the pixel
+     * @return maximum elevation in meters
+     */
+    public float getBlockMax(int level, int x, int y) {
+        int k = level - MIN_LEVEL;
+        return levels[k][(y >> level) * widths[k] + (x >> level)];
+    }
+
+    /**
+     * @return maximum elevation of the whole grid (at least sea level)
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return size of all levels in bytes
+     */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (float[] level : levels) bytes += 4L * level.length;
+        return bytes;
+    }
+}
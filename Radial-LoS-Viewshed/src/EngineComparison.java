@@ -0,0 +1,110 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compares the {@link ViewshedEngine}s on the same DEM and observer: the time of each engine (best of several runs)
+ * and the agreement of its result with the exact {@link R3Engine}.
+ * java EngineComparison lon lat observerHeight radius targetHeight mode threads
+ */
+public class EngineComparison {
+
+    private static final int TILE_SIZE = 3601;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        double lon = args.length > 0 ? Double.parseDouble(args[0]) : 23.5032;
+        double lat = args.length > 1 ? Double.parseDouble(args[1]) : 38.5342;
+        double observerHeight = args.length > 2 ? Double.parseDouble(args[2]) : 600;
+        double radius = args.length > 3 ? Double.parseDouble(args[3]) : 50000;
+        double targetHeight = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        int mode = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        int numThreads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+        compare(new PointOfInterest(lon, lat, observerHeight), radius, targetHeight, mode, numThreads,
+                new R3Engine(), new RayTemplateEngine(), new XDrawEngine());
+    }
+
+    /**
+     * Run every engine on the same DEM and print its time and its agreement with the first engine
+     * @param observer the observer
+     * @param radius radius in meters
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param numThreads number of threads
+     * @param engines the engines, the first one is the reference
+     */
+    public static void compare(PointOfInterest observer, double radius, double targetHeight, int mode, int numThreads,
+                               ViewshedEngine... engines) {
+        RasterUtils ru = new RasterUtils(TILE_SIZE);
+        SpatialUtils su = new SpatialUtils(ru);
+        GridWindow window = GridWindow.forObserver(su, observer.getLongitude(), observer.getLatitude(), radius, TILE_SIZE);
+        window.applyTo(su);
+        DemMosaic dem = window.createMosaic();
+        ObserverGeometry geometry = new ObserverGeometry(su, observer);
+        System.out.println("Comparing engines for " + observer.getLongitude() + " | " + observer.getLatitude() + ", radius " + radius
+                + " m, mode " + mode + ", grid " + su.gridWidth + "x" + su.gridHeight);
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        ViewshedResult reference = null;
+        long referenceNanos = 0;
+        for (ViewshedEngine engine : engines) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                su.initializeResult(mode);
+                long start = System.nanoTime();
+                pool.invoke(ForkJoinTask.adapt(() -> engine.calculate(su, geometry, dem, radius, targetHeight, mode, numThreads, null)));
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            ViewshedResult result = su.getResult();
+            if (reference == null) {
+                reference = result;
+                referenceNanos = best;
+            }
+            System.out.println(String.format("%-16s %10.1f ms %8.2fx  %s", engine.getName(), best / 1e6,
+                    (double) referenceNanos / best, compare(reference, result)));
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * @return agreement of a result with the reference, as visible cells that differ (modes 1 and 3)
+     * or as the error of the required heights (modes 0 and 2)
+     */
+    private static String compare(ViewshedResult reference, ViewshedResult result) {
+        long cells = 0;
+        long onlyReference = 0;
+        long onlyResult = 0;
+        double absoluteError = 0;
+        int maxError = 0;
+        for (int y = 0; y < reference.getHeight(); y++) {
+            for (int x = 0; x < reference.getWidth(); x++) {
+                if (!reference.isHeightMode()) {
+                    boolean expected = reference.isVisible(x, y);
+                    boolean actual = result.isVisible(x, y);
+                    if (expected) cells++;
+                    if (expected && !actual) onlyReference++;
+                    if (actual && !expected) onlyResult++;
+                    continue;
+                }
+                int expected = reference.getRequiredHeight(x, y);
+                int actual = result.getRequiredHeight(x, y);
+                if (expected == ViewshedResult.NO_HEIGHT || actual == ViewshedResult.NO_HEIGHT) {
+                    if (expected != actual) {
+                        if (actual == ViewshedResult.NO_HEIGHT) onlyReference++;
+                        else onlyResult++;
+                    }
+                    continue;
+                }
+                cells++;
+                int error = Math.abs(expected - actual);
+                absoluteError += error;
+                maxError = Math.max(maxError, error);
+            }
+        }
+        if (!reference.isHeightMode()) {
+            return String.format("visible %d | missed %d (%.2f%%) | extra %d (%.2f%%)", cells, onlyReference,
+                    100.0 * onlyReference / Math.max(1, cells), onlyResult, 100.0 * onlyResult / Math.max(1, cells));
+        }
+        return String.format("cells %d | mean error %.2f m | max error %d m | missing %d | extra %d", cells,
+                absoluteError / Math.max(1, cells), maxError, onlyReference, onlyResult);
+    }
+}
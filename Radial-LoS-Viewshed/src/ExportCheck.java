@@ -0,0 +1,301 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Round-trip check of the streaming writers. PNGs of {@link PngWriter} are checked chunk by chunk (CRCs, one complete
+ * zlib stream whose Adler-32 the inflater verifies) and decoded by ImageIO, and the pixels are compared. GeoTIFFs of
+ * {@link GeoTiffWriter} are read back by {@link GeoTiffReader}, their georeferencing tags are checked, and they are
+ * decoded by the TIFF plugin of ImageIO as well. Images of several sizes cover partial strips and tiles and more strips
+ * than the writers keep in flight. Prints every failing case and exits with status 1 if there is one.
+ * java ExportCheck [seed]
+ */
+public class ExportCheck {
+
+    // width and height of the checked images
+    private static final int[][] SIZES = {{1, 1}, {5, 3}, {64, 64}, {257, 130}, {300, 1100}, {1000, 71}};
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+        int cases = 0;
+        int failures = 0;
+        for (int i = 0; i < 1000; i++) {
+            cases++;
+            if (!checkCombineAdler32(random)) failures++;
+        }
+        for (int[] size : SIZES) {
+            for (int colorType : new int[]{PngWriter.COLOR_RGBA, PngWriter.COLOR_GRAY16}) {
+                cases++;
+                if (!checkPng(size[0], size[1], colorType, random)) failures++;
+            }
+        }
+        Path file = Files.createTempFile("export-check", ".tif");
+        try {
+            for (int[] size : SIZES) {
+                for (int bits : new int[]{8, 16, 32}) {
+                    for (int format : new int[]{GeoTiffWriter.SAMPLE_FORMAT_UINT, GeoTiffWriter.SAMPLE_FORMAT_INT, GeoTiffWriter.SAMPLE_FORMAT_FLOAT}) {
+                        if (format == GeoTiffWriter.SAMPLE_FORMAT_FLOAT && bits != 32) continue;
+                        cases++;
+                        if (!checkGeoTiff(file, size[0], size[1], bits, format, random)) failures++;
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        System.out.println(cases + " cases, " + failures + " failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Split random data in two and combine the checksums of the pieces
+     */
+    private static boolean checkCombineAdler32(Random random) {
+        byte[] data = new byte[random.nextInt(200000)];
+        random.nextBytes(data);
+        int split = data.length == 0 ? 0 : random.nextInt(data.length + 1);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, split);
+        Adler32 second = new Adler32();
+        second.update(data, split, data.length - split);
+        long combined = PngWriter.combineAdler32(first.getValue(), second.getValue(), data.length - split);
+        if (combined != whole.getValue()) {
+            System.out.println("FAIL Adler-32 of " + data.length + " bytes split at " + split);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean checkPng(int width, int height, int colorType, Random random) throws IOException {
+        String name = "PNG " + width + "x" + height + (colorType == PngWriter.COLOR_RGBA ? " RGBA" : " GRAY16");
+        PngWriter writer = new PngWriter(width, height, colorType);
+        byte[][] rows = createRows(height, writer.getRowBytes(), colorType == PngWriter.COLOR_RGBA ? 4 : 2, random);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out, (y, row) -> System.arraycopy(rows[y], 0, row, 0, row.length));
+        byte[] png = out.toByteArray();
+
+        String error = checkPngStream(png, height, writer.getRowBytes());
+        if (error != null) {
+            System.out.println("FAIL " + name + ": " + error);
+            return false;
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            System.out.println("FAIL " + name + ": ImageIO cannot decode it");
+            return false;
+        }
+        Raster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] expected = new int[colorType == PngWriter.COLOR_RGBA ? 4 : 1];
+                for (int band = 0; band < expected.length; band++) {
+                    expected[band] = colorType == PngWriter.COLOR_RGBA ? rows[y][4 * x + band] & 0xFF
+                            : ((rows[y][2 * x] & 0xFF) << 8) | (rows[y][2 * x + 1] & 0xFF);
+                }
+                int[] actual = raster.getPixel(x, y, (int[]) null);
+                if (!Arrays.equals(expected, actual)) {
+                    System.out.println("FAIL " + name + ": pixel " + x + "/" + y + " expected " + Arrays.toString(expected)
+                            + " got " + Arrays.toString(actual));
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walk the chunks of a PNG, check their CRCs and inflate the concatenated IDAT data as one zlib stream
+     * @return description of the first problem, or null
+     */
+    private static String checkPngStream(byte[] png, int height, int rowBytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(png);
+        buffer.position(8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        String last = null;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 12) {
+            int length = buffer.getInt();
+            byte[] type = new byte[4];
+            buffer.get(type);
+            byte[] data = new byte[length];
+            buffer.get(data);
+            crc.reset();
+            crc.update(type);
+            crc.update(data);
+            last = new String(type, StandardCharsets.US_ASCII);
+            if ((int) crc.getValue() != buffer.getInt()) return "bad CRC of chunk " + last;
+            if (last.equals("IDAT")) idat.write(data, 0, length);
+        }
+        if (buffer.hasRemaining() || !"IEND".equals(last)) return "does not end with IEND";
+
+        // the inflater verifies the Adler-32 of the stream when it reaches its end
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(idat.toByteArray());
+            byte[] raw = new byte[height * (rowBytes + 1) + 1];
+            int length = 0;
+            while (!inflater.finished() && length < raw.length) {
+                int count = inflater.inflate(raw, length, raw.length - length);
+                if (count == 0 && inflater.needsInput()) return "truncated zlib stream";
+                length += count;
+            }
+            if (!inflater.finished() || length != height * (rowBytes + 1)) return "zlib stream of " + length + " bytes";
+            if (inflater.getRemaining() != 0) return "data after the zlib stream";
+        } catch (DataFormatException e) {
+            return "corrupt zlib stream: " + e.getMessage();
+        } finally {
+            inflater.end();
+        }
+        return null;
+    }
+
+    private static boolean checkGeoTiff(Path file, int width, int height, int bits, int format, Random random) throws IOException {
+        String name = "GeoTIFF " + width + "x" + height + " " + bits + " bits format " + format;
+        GeoTiffWriter writer = new GeoTiffWriter(width, height, bits, format);
+        int bytes = bits / 8;
+        byte[][] rows = createRows(height, writer.getRowBytes(), bytes, random);
+        if (format == GeoTiffWriter.SAMPLE_FORMAT_FLOAT) {
+            // random bits could be NaNs, which do not compare
+            for (byte[] row : rows) {
+                ByteBuffer samples = ByteBuffer.wrap(row).order(ByteOrder.LITTLE_ENDIAN);
+                for (int x = 0; x < width; x++) samples.putFloat(4 * x, (float) (random.nextGaussian() * 1000));
+            }
+        }
+        double minLon = 23.25;
+        double maxLon = 24.5;
+        double minLat = 38.125;
+        double maxLat = 38.75;
+        String noData = bits == 8 ? "0" : "-32768";
+        writer.write(file, (y, row) -> System.arraycopy(rows[y], 0, row, 0, row.length), minLon, maxLon, minLat, maxLat, noData);
+
+        GeoTiffReader reader = new GeoTiffReader(file);
+        float[] decoded = new float[width * height];
+        reader.readInto(decoded, width, height, 0, 0);
+        BufferedImage image = ImageIO.read(file.toFile());
+        Raster raster = image == null ? null : image.getRaster();
+        for (int y = 0; y < height; y++) {
+            ByteBuffer samples = ByteBuffer.wrap(rows[y]).order(ByteOrder.LITTLE_ENDIAN);
+            for (int x = 0; x < width; x++) {
+                float expected;
+                if (format == GeoTiffWriter.SAMPLE_FORMAT_FLOAT) {
+                    expected = samples.getFloat(4 * x);
+                } else {
+                    long value = bytes == 1 ? samples.get(x) : bytes == 2 ? samples.getShort(2 * x) : samples.getInt(4 * x);
+                    if (format == GeoTiffWriter.SAMPLE_FORMAT_UINT) value &= bits == 32 ? 0xFFFFFFFFL : (1L << bits) - 1;
+                    expected = value;
+                }
+                if (Float.compare(expected, decoded[y * width + x]) != 0) {
+                    System.out.println("FAIL " + name + ": cell " + x + "/" + y + " expected " + expected
+                            + " got " + decoded[y * width + x] + " from GeoTiffReader");
+                    return false;
+                }
+                // ImageIO has no 32-bit unsigned integer samples and reads 8-bit signed ones as unsigned
+                if (raster != null && !(bits == 32 && format == GeoTiffWriter.SAMPLE_FORMAT_UINT)) {
+                    float actual = raster.getSampleFloat(x, y, 0);
+                    if (bits == 8 && format == GeoTiffWriter.SAMPLE_FORMAT_INT) actual = (byte) actual;
+                    if (Float.compare(expected, actual) != 0) {
+                        System.out.println("FAIL " + name + ": cell " + x + "/" + y + " expected " + expected
+                                + " got " + actual + " from ImageIO");
+                        return false;
+                    }
+                }
+            }
+        }
+        if (raster == null) {
+            System.out.println("FAIL " + name + ": ImageIO cannot decode it");
+            return false;
+        }
+
+        String error = checkGeoKeys(file, width, height, minLon, maxLon, minLat, maxLat, noData);
+        if (error != null) {
+            System.out.println("FAIL " + name + ": " + error);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the pixel scale, the tie point and the no-data value in the directory of a GeoTIFF
+     * @return description of the first problem, or null
+     */
+    private static String checkGeoKeys(Path file, int width, int height, double minLon, double maxLon, double minLat,
+                                       double maxLat, String noData) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        int directory = buffer.getInt(4);
+        double[] scale = null;
+        double[] tiePoint = null;
+        String noDataValue = null;
+        for (int i = 0; i < (buffer.getShort(directory) & 0xFFFF); i++) {
+            int entry = directory + 2 + 12 * i;
+            int tag = buffer.getShort(entry) & 0xFFFF;
+            int count = buffer.getInt(entry + 4);
+            if (tag == 33550 || tag == 33922) {
+                double[] values = new double[count];
+                for (int v = 0; v < count; v++) values[v] = buffer.getDouble(buffer.getInt(entry + 8) + 8 * v);
+                if (tag == 33550) scale = values;
+                else tiePoint = values;
+            } else if (tag == 42113) {
+                int at = count <= 4 ? entry + 8 : buffer.getInt(entry + 8);
+                noDataValue = new String(buffer.array(), at, count - 1, StandardCharsets.US_ASCII);
+            }
+        }
+        double[] expectedScale = {(maxLon - minLon) / width, (maxLat - minLat) / height, 0};
+        double[] expectedTiePoint = {0, 0, 0, minLon, maxLat, 0};
+        if (!Arrays.equals(expectedScale, scale)) return "pixel scale " + Arrays.toString(scale);
+        if (!Arrays.equals(expectedTiePoint, tiePoint)) return "tie point " + Arrays.toString(tiePoint);
+        if (!noData.equals(noDataValue)) return "no data " + noDataValue;
+        return null;
+    }
+
+    /**
+     * Random rows, with runs, gradients and segments so that every PNG filter type gets picked
+     * @param sampleBytes bytes per pixel (or sample), runs and gradients step by whole pixels
+     */
+    private static byte[][] createRows(int height, int rowBytes, int sampleBytes, Random random) {
+        byte[][] rows = new byte[height][rowBytes];
+        for (int y = 0; y < height; y++) {
+            switch (y % 8) {
+                case 0:
+                    random.nextBytes(rows[y]);
+                    break;
+                case 1:
+                    // the row above again, except for a few bytes
+                    System.arraycopy(rows[y - 1], 0, rows[y], 0, rowBytes);
+                    rows[y][random.nextInt(rowBytes)] ^= 1;
+                    break;
+                case 2:
+                    for (int i = 0; i < rowBytes; i++) rows[y][i] = (byte) (i / sampleBytes + y);
+                    break;
+                case 3:
+                    Arrays.fill(rows[y], (byte) random.nextInt(256));
+                    break;
+                default:
+                    // constant segments whose borders move from row to row, which Paeth predicts better than Sub or Up
+                    int width = 1 + random.nextInt(9);
+                    byte value = 0;
+                    for (int i = 0; i < rowBytes; i++) {
+                        if (i % (width * sampleBytes) == 0) value = (byte) random.nextInt(256);
+                        rows[y][i] = y % 8 == 4 || i / sampleBytes % 7 != 0 ? value : rows[y - 1][i];
+                    }
+            }
+        }
+        return rows;
+    }
+}
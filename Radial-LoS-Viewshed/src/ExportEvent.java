@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of the export of a result image
+ */
+@Name("viewshed.Export")
+@Label("Viewshed Export")
+@Category("Viewshed")
+@Description("Colorizing and encoding of a result image")
+@StackTrace(false)
+public class ExportEvent extends Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytes;
+}
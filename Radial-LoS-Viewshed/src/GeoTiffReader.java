@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal GeoTIFF elevation reader. The file is memory-mapped and its strips (or tiles) are decoded
+ * straight into a flat float array, without going through ImageIO or intermediate Raster objects.
+ * Only the first band is read. Supported are 8/16/32-bit integer and 32/64-bit float samples,
+ * uncompressed, LZW or Deflate compressed, with or without a horizontal/floating point predictor.
+ */
+public class GeoTiffReader {
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_PREDICTOR = 317;
+    private static final int TAG_TILE_WIDTH = 322;
+    private static final int TAG_TILE_LENGTH = 323;
+    private static final int TAG_TILE_OFFSETS = 324;
+    private static final int TAG_TILE_BYTE_COUNTS = 325;
+    private static final int TAG_SAMPLE_FORMAT = 339;
+
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_LZW = 5;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+
+    private static final int SAMPLE_FORMAT_UINT = 1;
+    private static final int SAMPLE_FORMAT_INT = 2;
+    private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+    private final ByteBuffer buffer;
+    private int width;
+    private int height;
+    private int bitsPerSample = 1;
+    private int sampleFormat = SAMPLE_FORMAT_UINT;
+    private int samplesPerPixel = 1;
+    private int compression = COMPRESSION_NONE;
+    private int predictor = 1;
+    private int planarConfiguration = 1;
+    private int rowsPerStrip = Integer.MAX_VALUE;
+    private int tileWidth;
+    private int tileHeight;
+    private long[] offsets;
+    private long[] byteCounts;
+
+    public GeoTiffReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        readHeader();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decode the first band of the image into the given row-major array
+     * @param dest destination array of destWidth*destHeight samples
+     * @param destWidth width of the destination grid
+     * @param destHeight height of the destination grid
+     * @param offsetX column of the destination grid where the first image column is written
+     * @param offsetY row of the destination grid where the first image row is written
+     * @throws IOException if the file is corrupt or uses an unsupported encoding
+     */
+    public void readInto(float[] dest, int destWidth, int destHeight, int offsetX, int offsetY) throws IOException {
+        boolean tiled = tileWidth > 0;
+        int chunkWidth = tiled ? tileWidth : width;
+        int chunkHeight = tiled ? tileHeight : Math.min(rowsPerStrip, height);
+        int chunksAcross = (width + chunkWidth - 1) / chunkWidth;
+        int chunksDown = (height + chunkHeight - 1) / chunkHeight;
+        int bytesPerSample = bitsPerSample / 8;
+        // with planar configuration 2 the first band occupies the first chunks, otherwise samples are interleaved
+        int sampleStride = planarConfiguration == 2 ? 1 : samplesPerPixel;
+        int chunkSize = chunkWidth * chunkHeight * sampleStride * bytesPerSample;
+
+        byte[] scratch = compression == COMPRESSION_NONE && predictor != 3 ? null : new byte[chunkSize];
+        byte[] rowScratch = predictor == 3 ? new byte[chunkWidth * sampleStride * bytesPerSample] : null;
+        Inflater inflater = compression == COMPRESSION_DEFLATE || compression == COMPRESSION_ADOBE_DEFLATE ? new Inflater() : null;
+        try {
+            for (int chunkY = 0; chunkY < chunksDown; chunkY++) {
+                for (int chunkX = 0; chunkX < chunksAcross; chunkX++) {
+                    int index = chunkY * chunksAcross + chunkX;
+                    if (index >= offsets.length) throw new IOException("Missing strip/tile offset " + index);
+                    ByteBuffer compressed = slice(offsets[index], byteCounts[index]);
+
+                    ByteBuffer data;
+                    switch (compression) {
+                        case COMPRESSION_NONE:
+                            if (scratch == null) {
+                                data = compressed;
+                            } else {
+                                compressed.get(scratch, 0, Math.min(chunkSize, compressed.remaining()));
+                                data = ByteBuffer.wrap(scratch);
+                            }
+                            break;
+                        case COMPRESSION_LZW:
+                            lzwDecode(compressed, scratch);
+                            data = ByteBuffer.wrap(scratch);
+                            break;
+                        case COMPRESSION_DEFLATE:
+                        case COMPRESSION_ADOBE_DEFLATE:
+                            inflate(inflater, compressed, scratch);
+                            data = ByteBuffer.wrap(scratch);
+                            break;
+                        default:
+                            throw new IOException("Unsupported TIFF compression " + compression);
+                    }
+
+                    int rows = Math.min(chunkHeight, height - chunkY * chunkHeight);
+                    if (predictor == 3) {
+                        // floating point predictor leaves the samples big-endian regardless of the file byte order
+                        undoFloatingPointPredictor(scratch, rowScratch, chunkWidth, rows, sampleStride, bytesPerSample);
+                        data.order(ByteOrder.BIG_ENDIAN);
+                    } else {
+                        data.order(buffer.order());
+                    }
+                    copySamples(data, chunkWidth, rows, sampleStride, bytesPerSample,
+                            dest, destWidth, destHeight, offsetX + chunkX * chunkWidth, offsetY + chunkY * chunkHeight,
+                            Math.min(chunkWidth, width - chunkX * chunkWidth));
+                }
+            }
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    /**
+     * Convert the decoded samples of a chunk to floats and write the visible part of it into the destination grid
+     */
+    private void copySamples(ByteBuffer data, int chunkWidth, int rows, int sampleStride, int bytesPerSample,
+                             float[] dest, int destWidth, int destHeight, int startX, int startY, int columns) {
+        int pixelStride = sampleStride * bytesPerSample;
+        for (int row = 0; row < rows; row++) {
+            int destY = startY + row;
+            if (destY < 0 || destY >= destHeight) continue;
+            int rowStart = row * chunkWidth * pixelStride;
+            // horizontal differencing is accumulated on the integer values of the row
+            long previous = 0;
+            for (int column = 0; column < columns; column++) {
+                int position = rowStart + column * pixelStride;
+                int destX = startX + column;
+                float value;
+                if (sampleFormat == SAMPLE_FORMAT_FLOAT) {
+                    value = bytesPerSample == 8 ? (float) data.getDouble(position) : data.getFloat(position);
+                } else {
+                    long raw;
+                    switch (bytesPerSample) {
+                        case 1: raw = data.get(position); break;
+                        case 2: raw = data.getShort(position); break;
+                        case 3: raw = getInt24(data, position); break;
+                        case 4: raw = data.getInt(position); break;
+                        default: raw = data.getLong(position); break;
+                    }
+                    if (predictor == 2) {
+                        raw += previous;
+                        previous = raw;
+                    }
+                    value = toSampleValue(raw, bytesPerSample);
+                }
+                if (destX >= 0 && destX < destWidth) {
+                    dest[destY * destWidth + destX] = value;
+                }
+            }
+        }
+    }
+
+    private static long getInt24(ByteBuffer data, int position) {
+        int b0 = data.get(position) & 0xFF;
+        int b1 = data.get(position + 1) & 0xFF;
+        int b2 = data.get(position + 2) & 0xFF;
+        return data.order() == ByteOrder.LITTLE_ENDIAN ? b0 | (b1 << 8) | (b2 << 16) : (b0 << 16) | (b1 << 8) | b2;
+    }
+
+    private float toSampleValue(long raw, int bytesPerSample) {
+        if (bytesPerSample == 8) {
+            // the mask below would overflow, and unsigned values above 2^63 wrap to negative longs: halve them, keeping
+            // the lowest bit for the rounding, so that they are rounded only once
+            return sampleFormat == SAMPLE_FORMAT_INT || raw >= 0 ? raw : ((raw >>> 1) | (raw & 1)) * 2f;
+        }
+        int bits = bytesPerSample * 8;
+        long mask = (1L << bits) - 1;
+        long unsigned = raw & mask;
+        if (sampleFormat == SAMPLE_FORMAT_INT && (unsigned & (1L << (bits - 1))) != 0) {
+            return unsigned - (1L << bits);
+        }
+        return unsigned;
+    }
+
+    /**
+     * Undo TIFF predictor 3: the bytes of each row are byte-differenced and stored as planes of
+     * most significant to least significant bytes
+     */
+    private void undoFloatingPointPredictor(byte[] data, byte[] row, int chunkWidth, int rows, int sampleStride, int bytesPerSample) {
+        int rowBytes = chunkWidth * sampleStride * bytesPerSample;
+        int samples = chunkWidth * sampleStride;
+        for (int r = 0; r < rows; r++) {
+            int start = r * rowBytes;
+            for (int i = start + sampleStride; i < start + rowBytes; i++) {
+                data[i] += data[i - sampleStride];
+            }
+            System.arraycopy(data, start, row, 0, rowBytes);
+            for (int sample = 0; sample < samples; sample++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    data[start + sample * bytesPerSample + b] = row[b * samples + sample];
+                }
+            }
+        }
+    }
+
+    private void inflate(Inflater inflater, ByteBuffer compressed, byte[] out) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        int written = 0;
+        try {
+            while (written < out.length && !inflater.finished()) {
+                int n = inflater.inflate(out, written, out.length - written);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                written += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate stream", e);
+        }
+    }
+
+    /**
+     * Decode a TIFF LZW stream (MSB-first codes with early change)
+     */
+    private static void lzwDecode(ByteBuffer in, byte[] out) {
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096];
+        byte[] first = new byte[4096];
+        int[] length = new int[4096];
+        for (int i = 0; i < 256; i++) {
+            prefix[i] = -1;
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+        int bitBuffer = 0;
+        int bitCount = 0;
+        int codeLength = 9;
+        int next = 258;
+        int old = -1;
+        int position = 0;
+        while (position < out.length) {
+            while (bitCount < codeLength) {
+                if (!in.hasRemaining()) return;
+                bitBuffer = (bitBuffer << 8) | (in.get() & 0xFF);
+                bitCount += 8;
+            }
+            int code = (bitBuffer >>> (bitCount - codeLength)) & ((1 << codeLength) - 1);
+            bitCount -= codeLength;
+            if (code == 257) return;
+            if (code == 256) {
+                codeLength = 9;
+                next = 258;
+                old = -1;
+                continue;
+            }
+            if (old == -1) {
+                out[position++] = (byte) code;
+                old = code;
+                continue;
+            }
+            byte firstByte;
+            if (code < next) {
+                position = writeString(code, prefix, suffix, length, out, position);
+                firstByte = first[code];
+            } else {
+                // code not in table yet: previous string followed by its own first byte
+                position = writeString(old, prefix, suffix, length, out, position);
+                if (position < out.length) out[position++] = first[old];
+                firstByte = first[old];
+            }
+            if (next < 4096) {
+                prefix[next] = old;
+                suffix[next] = firstByte;
+                first[next] = first[old];
+                length[next] = length[old] + 1;
+                next++;
+            }
+            old = code;
+            if (next + 1 >= (1 << codeLength) && codeLength < 12) codeLength++;
+        }
+    }
+
+    private static int writeString(int code, int[] prefix, byte[] suffix, int[] length, byte[] out, int position) {
+        int len = length[code];
+        for (int i = position + len - 1; code >= 0; i--) {
+            if (i < out.length) out[i] = suffix[code];
+            code = prefix[code];
+        }
+        return Math.min(position + len, out.length);
+    }
+
+    private ByteBuffer slice(long offset, long count) throws IOException {
+        if (offset < 0 || count < 0 || offset + count > buffer.capacity()) {
+            throw new IOException("Strip/tile outside of file bounds");
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) offset);
+        duplicate.limit((int) (offset + count));
+        return duplicate.slice().order(buffer.order());
+    }
+
+    private void readHeader() throws IOException {
+        if (buffer.capacity() < 8) throw new IOException("Not a TIFF file");
+        int byteOrder = buffer.getShort(0) & 0xFFFF;
+        if (byteOrder == 0x4949) buffer.order(ByteOrder.LITTLE_ENDIAN);
+        else if (byteOrder == 0x4D4D) buffer.order(ByteOrder.BIG_ENDIAN);
+        else throw new IOException("Not a TIFF file");
+        int magic = buffer.getShort(2) & 0xFFFF;
+        if (magic == 43) throw new IOException("BigTIFF is not supported");
+        if (magic != 42) throw new IOException("Not a TIFF file");
+
+        int ifd = buffer.getInt(4);
+        int entries = buffer.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            int tag = buffer.getShort(entry) & 0xFFFF;
+            switch (tag) {
+                case TAG_IMAGE_WIDTH: width = (int) readValue(entry, 0); break;
+                case TAG_IMAGE_LENGTH: height = (int) readValue(entry, 0); break;
+                case TAG_BITS_PER_SAMPLE: bitsPerSample = (int) readValue(entry, 0); break;
+                case TAG_COMPRESSION: compression = (int) readValue(entry, 0); break;
+                case TAG_SAMPLES_PER_PIXEL: samplesPerPixel = (int) readValue(entry, 0); break;
+                case TAG_ROWS_PER_STRIP: rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, readValue(entry, 0)); break;
+                case TAG_PLANAR_CONFIGURATION: planarConfiguration = (int) readValue(entry, 0); break;
+                case TAG_PREDICTOR: predictor = (int) readValue(entry, 0); break;
+                case TAG_TILE_WIDTH: tileWidth = (int) readValue(entry, 0); break;
+                case TAG_TILE_LENGTH: tileHeight = (int) readValue(entry, 0); break;
+                case TAG_SAMPLE_FORMAT: sampleFormat = (int) readValue(entry, 0); break;
+                case TAG_STRIP_OFFSETS:
+                case TAG_TILE_OFFSETS: offsets = readValues(entry); break;
+                case TAG_STRIP_BYTE_COUNTS:
+                case TAG_TILE_BYTE_COUNTS: byteCounts = readValues(entry); break;
+                default: break;
+            }
+        }
+        if (width <= 0 || height <= 0 || offsets == null || byteCounts == null) {
+            throw new IOException("Incomplete TIFF directory");
+        }
+        boolean supported = sampleFormat == SAMPLE_FORMAT_FLOAT ? bitsPerSample == 32 || bitsPerSample == 64
+                : bitsPerSample == 8 || bitsPerSample == 16 || bitsPerSample == 24 || bitsPerSample == 32 || bitsPerSample == 64;
+        if (!supported) {
+            throw new IOException("Unsupported sample layout: " + bitsPerSample + " bits, format " + sampleFormat);
+        }
+    }
+
+    private long[] readValues(int entry) {
+        int count = buffer.getInt(entry + 4);
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readValue(entry, i);
+        }
+        return values;
+    }
+
+    /**
+     * Read the index-th value of an IFD entry, following the offset when the values do not fit inline
+     */
+    private long readValue(int entry, int index) {
+        int type = buffer.getShort(entry + 2) & 0xFFFF;
+        int count = buffer.getInt(entry + 4);
+        int size = type == 3 ? 2 : (type == 1 ? 1 : 4);
+        int base = count * size <= 4 ? entry + 8 : buffer.getInt(entry + 8);
+        int position = base + index * size;
+        switch (type) {
+            case 1: return buffer.get(position) & 0xFF;
+            case 3: return buffer.getShort(position) & 0xFFFF;
+            default: return buffer.getInt(position) & 0xFFFFFFFFL;
+        }
+    }
+}
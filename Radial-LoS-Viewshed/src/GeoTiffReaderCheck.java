@@ -0,0 +1,383 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Round-trip check of {@link GeoTiffReader}. Small TIFFs are encoded by the minimal encoder of this class (both byte
+ * orders, strips and tiles, 8 to 64-bit integer and 32/64-bit float samples, one or two samples per pixel,
+ * uncompressed, LZW and Deflate, predictors 2 and 3), decoded by the reader into an offset window of a larger grid and
+ * compared sample by sample. Prints every failing case and exits with status 1 if there is one.
+ * java GeoTiffReaderCheck [seed]
+ */
+public class GeoTiffReaderCheck {
+
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_LZW = 5;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+    private static final int[] COMPRESSIONS = {COMPRESSION_NONE, COMPRESSION_LZW, COMPRESSION_DEFLATE, COMPRESSION_ADOBE_DEFLATE};
+
+    private static final int SAMPLE_FORMAT_UINT = 1;
+    private static final int SAMPLE_FORMAT_INT = 2;
+    private static final int SAMPLE_FORMAT_FLOAT = 3;
+    // bits per sample and sample format of every tested layout
+    private static final int[][] LAYOUTS = {
+            {8, SAMPLE_FORMAT_UINT}, {8, SAMPLE_FORMAT_INT}, {16, SAMPLE_FORMAT_UINT}, {16, SAMPLE_FORMAT_INT},
+            {24, SAMPLE_FORMAT_UINT}, {24, SAMPLE_FORMAT_INT}, {32, SAMPLE_FORMAT_UINT}, {32, SAMPLE_FORMAT_INT},
+            {64, SAMPLE_FORMAT_UINT}, {64, SAMPLE_FORMAT_INT}, {32, SAMPLE_FORMAT_FLOAT}, {64, SAMPLE_FORMAT_FLOAT}};
+
+    // TIFF field types
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    // border of the destination grid around the decoded image, which must stay untouched
+    private static final int BORDER = 3;
+    private static final float UNTOUCHED = -12345.5f;
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+        Path directory = Files.createTempDirectory("geotiff-check");
+        int cases = 0;
+        int failures = 0;
+        try {
+            for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                for (int[] layout : LAYOUTS) {
+                    for (int compression : COMPRESSIONS) {
+                        for (int predictor : new int[]{1, layout[1] == SAMPLE_FORMAT_FLOAT ? 3 : 2}) {
+                            for (boolean tiled : new boolean[]{false, true}) {
+                                for (int samplesPerPixel = 1; samplesPerPixel <= 2; samplesPerPixel++) {
+                                    Image image = new Image(37, 29, layout[0], layout[1], samplesPerPixel, random);
+                                    cases++;
+                                    if (!check(directory, image, order, compression, predictor, tiled)) failures++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            // large enough to fill the LZW table several times (clear codes and 12-bit codes)
+            for (int predictor = 1; predictor <= 2; predictor++) {
+                Image image = new Image(300, 250, 16, SAMPLE_FORMAT_INT, 1, random);
+                cases++;
+                if (!check(directory, image, ByteOrder.LITTLE_ENDIAN, COMPRESSION_LZW, predictor, false)) failures++;
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+        System.out.println(cases + " cases, " + failures + " failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Encode an image, decode it with the reader and compare
+     * @return whether the decoded samples match
+     */
+    private static boolean check(Path directory, Image image, ByteOrder order, int compression, int predictor, boolean tiled) throws IOException {
+        String name = image.bitsPerSample + " bits format " + image.sampleFormat + " x" + image.samplesPerPixel
+                + (order == ByteOrder.LITTLE_ENDIAN ? " II" : " MM") + " compression " + compression + " predictor " + predictor
+                + (tiled ? " tiles " : " strips ") + image.width + "x" + image.height;
+        Path file = directory.resolve("check.tif");
+        Files.write(file, encode(image, order, compression, predictor, tiled));
+
+        GeoTiffReader reader = new GeoTiffReader(file);
+        if (reader.getWidth() != image.width || reader.getHeight() != image.height) {
+            System.out.println("FAIL " + name + ": size " + reader.getWidth() + "x" + reader.getHeight());
+            return false;
+        }
+        int destWidth = image.width + 2 * BORDER;
+        int destHeight = image.height + 2 * BORDER;
+        float[] dest = new float[destWidth * destHeight];
+        Arrays.fill(dest, UNTOUCHED);
+        try {
+            reader.readInto(dest, destWidth, destHeight, BORDER, BORDER);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("FAIL " + name + ": " + e);
+            return false;
+        }
+        for (int y = 0; y < destHeight; y++) {
+            for (int x = 0; x < destWidth; x++) {
+                boolean inside = x >= BORDER && x < BORDER + image.width && y >= BORDER && y < BORDER + image.height;
+                float expected = inside ? image.getExpected(x - BORDER, y - BORDER) : UNTOUCHED;
+                float actual = dest[y * destWidth + x];
+                if (Float.compare(expected, actual) != 0) {
+                    System.out.println("FAIL " + name + ": cell " + (x - BORDER) + "/" + (y - BORDER) + " expected " + expected
+                            + " got " + actual);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Random samples of an image: smooth ramps, noise and constant runs, so that the predictors and the repeated
+     * strings of LZW are exercised. Only the first sample of a pixel is compared, the others are noise.
+     */
+    private static class Image {
+        final int width;
+        final int height;
+        final int bitsPerSample;
+        final int sampleFormat;
+        final int samplesPerPixel;
+        // integer samples as their two's complement bits, float samples as the bits of a double
+        final long[] samples;
+
+        Image(int width, int height, int bitsPerSample, int sampleFormat, int samplesPerPixel, Random random) {
+            this.width = width;
+            this.height = height;
+            this.bitsPerSample = bitsPerSample;
+            this.sampleFormat = sampleFormat;
+            this.samplesPerPixel = samplesPerPixel;
+            samples = new long[width * height * samplesPerPixel];
+            long mask = bitsPerSample == 64 ? -1L : (1L << bitsPerSample) - 1;
+            for (int i = 0; i < samples.length; i++) {
+                int x = i / samplesPerPixel % width;
+                int y = i / samplesPerPixel / width;
+                if (sampleFormat == SAMPLE_FORMAT_FLOAT) {
+                    double value = y % 5 == 0 ? 42.25 : (x * 7.5 - y * 3.25) + random.nextGaussian() * 100;
+                    samples[i] = Double.doubleToLongBits(bitsPerSample == 32 ? (float) value : value);
+                } else if (y % 5 == 0) {
+                    samples[i] = 0;
+                } else if (y % 5 == 1) {
+                    samples[i] = random.nextLong() & mask;
+                } else {
+                    samples[i] = (x * 37L - y * 11L + random.nextInt(9)) & mask;
+                }
+            }
+        }
+
+        /**
+         * @return the value that the reader has to return for the first sample of a pixel
+         */
+        float getExpected(int x, int y) {
+            long bits = samples[(y * width + x) * samplesPerPixel];
+            if (sampleFormat == SAMPLE_FORMAT_FLOAT) return (float) Double.longBitsToDouble(bits);
+            if (sampleFormat == SAMPLE_FORMAT_INT) {
+                // sign extension of the low bits
+                int shift = 64 - bitsPerSample;
+                return (bits << shift) >> shift;
+            }
+            return bitsPerSample == 64 ? new java.math.BigDecimal(Long.toUnsignedString(bits)).floatValue() : bits;
+        }
+
+        /**
+         * Append a sample in the byte order of the file
+         */
+        void putSample(ByteBuffer out, long bits) {
+            int bytes = bitsPerSample / 8;
+            if (sampleFormat == SAMPLE_FORMAT_FLOAT && bytes == 4) bits = Float.floatToIntBits((float) Double.longBitsToDouble(bits));
+            for (int b = 0; b < bytes; b++) {
+                int shift = out.order() == ByteOrder.LITTLE_ENDIAN ? 8 * b : 8 * (bytes - 1 - b);
+                out.put((byte) (bits >>> shift));
+            }
+        }
+    }
+
+    /**
+     * Encode an image as a TIFF file
+     */
+    private static byte[] encode(Image image, ByteOrder order, int compression, int predictor, boolean tiled) {
+        int chunkWidth = tiled ? 16 : image.width;
+        int chunkHeight = tiled ? 16 : 7;
+        int chunksAcross = (image.width + chunkWidth - 1) / chunkWidth;
+        int chunksDown = (image.height + chunkHeight - 1) / chunkHeight;
+        List<byte[]> chunks = new ArrayList<>();
+        for (int chunkY = 0; chunkY < chunksDown; chunkY++) {
+            for (int chunkX = 0; chunkX < chunksAcross; chunkX++) {
+                // strips end at the last row of the image, tiles are padded to their full size
+                int rows = tiled ? chunkHeight : Math.min(chunkHeight, image.height - chunkY * chunkHeight);
+                byte[] raw = encodeChunk(image, order, predictor, chunkX * chunkWidth, chunkY * chunkHeight, chunkWidth, rows);
+                chunks.add(compress(raw, compression));
+            }
+        }
+
+        int entries = 12;
+        int directory = 8 + chunks.stream().mapToInt(chunk -> chunk.length).sum();
+        int extra = directory + 2 + entries * 12 + 4;
+        ByteBuffer out = ByteBuffer.allocate(extra + 8 * chunks.size() + 16).order(order);
+        out.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M')).put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        out.putShort((short) 42).putInt(directory);
+        long[] offsets = new long[chunks.size()];
+        long[] byteCounts = new long[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            offsets[i] = out.position();
+            byteCounts[i] = chunks.get(i).length;
+            out.put(chunks.get(i));
+        }
+
+        out.putShort((short) entries);
+        ByteBuffer values = out.duplicate().order(order);
+        values.position(extra);
+        // entries in ascending order of their tags
+        putEntry(out, values, 256, TYPE_LONG, image.width);
+        putEntry(out, values, 257, TYPE_LONG, image.height);
+        putEntry(out, values, 258, TYPE_SHORT, image.bitsPerSample);
+        putEntry(out, values, 259, TYPE_SHORT, compression);
+        if (tiled) {
+            putEntry(out, values, 277, TYPE_SHORT, image.samplesPerPixel);
+            putEntry(out, values, 317, TYPE_SHORT, predictor);
+            putEntry(out, values, 322, TYPE_SHORT, chunkWidth);
+            putEntry(out, values, 323, TYPE_SHORT, chunkHeight);
+            putEntry(out, values, 324, TYPE_LONG, offsets);
+            putEntry(out, values, 325, TYPE_LONG, byteCounts);
+        } else {
+            putEntry(out, values, 273, TYPE_LONG, offsets);
+            putEntry(out, values, 277, TYPE_SHORT, image.samplesPerPixel);
+            putEntry(out, values, 278, TYPE_LONG, chunkHeight);
+            putEntry(out, values, 279, TYPE_LONG, byteCounts);
+            putEntry(out, values, 284, TYPE_SHORT, 1);
+            putEntry(out, values, 317, TYPE_SHORT, predictor);
+        }
+        putEntry(out, values, 339, TYPE_SHORT, image.sampleFormat);
+        // an unknown tag that the reader has to skip
+        putEntry(out, values, 33550, TYPE_LONG, 7);
+        out.putInt(0);
+        return Arrays.copyOf(out.array(), values.position());
+    }
+
+    private static void putEntry(ByteBuffer out, ByteBuffer values, int tag, int type, long... data) {
+        int size = type == TYPE_SHORT ? 2 : 4;
+        out.putShort((short) tag).putShort((short) type).putInt(data.length);
+        ByteBuffer target = out;
+        int inline = out.position();
+        if (data.length * size > 4) {
+            out.putInt(values.position());
+            target = values;
+        }
+        for (long value : data) {
+            if (type == TYPE_SHORT) target.putShort((short) value);
+            else target.putInt((int) value);
+        }
+        if (target == out) out.position(inline + 4);
+    }
+
+    /**
+     * Samples of a strip or tile with the predictor applied, uncompressed. Cells outside the image are zero.
+     */
+    private static byte[] encodeChunk(Image image, ByteOrder order, int predictor, int startX, int startY, int chunkWidth, int rows) {
+        int bytes = image.bitsPerSample / 8;
+        int spp = image.samplesPerPixel;
+        int rowSamples = chunkWidth * spp;
+        int rowBytes = rowSamples * bytes;
+        ByteBuffer out = ByteBuffer.allocate(rows * rowBytes).order(predictor == 3 ? ByteOrder.BIG_ENDIAN : order);
+        long mask = image.bitsPerSample == 64 ? -1L : (1L << image.bitsPerSample) - 1;
+        for (int row = 0; row < rows; row++) {
+            int y = startY + row;
+            long[] samples = new long[rowSamples];
+            for (int i = 0; i < rowSamples; i++) {
+                int x = startX + i / spp;
+                if (x < image.width && y < image.height) samples[i] = image.samples[(y * image.width + x) * spp + i % spp];
+            }
+            if (predictor == 2) {
+                // horizontal differencing of every sample of a pixel with the same sample of the previous pixel
+                for (int i = rowSamples - 1; i >= spp; i--) samples[i] = (samples[i] - samples[i - spp]) & mask;
+            }
+            int rowStart = out.position();
+            for (long sample : samples) image.putSample(out, sample);
+            if (predictor == 3) {
+                // big-endian bytes of the row regrouped into planes of most to least significant bytes, then differenced
+                byte[] bigEndian = Arrays.copyOfRange(out.array(), rowStart, rowStart + rowBytes);
+                byte[] planes = new byte[rowBytes];
+                for (int sample = 0; sample < rowSamples; sample++) {
+                    for (int b = 0; b < bytes; b++) planes[b * rowSamples + sample] = bigEndian[sample * bytes + b];
+                }
+                for (int i = rowBytes - 1; i >= spp; i--) planes[i] -= planes[i - spp];
+                System.arraycopy(planes, 0, out.array(), rowStart, rowBytes);
+            }
+        }
+        return out.array();
+    }
+
+    private static byte[] compress(byte[] raw, int compression) {
+        switch (compression) {
+            case COMPRESSION_LZW:
+                return lzwEncode(raw);
+            case COMPRESSION_DEFLATE:
+            case COMPRESSION_ADOBE_DEFLATE:
+                Deflater deflater = new Deflater();
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+                deflater.end();
+                return out.toByteArray();
+            default:
+                return raw;
+        }
+    }
+
+    /**
+     * Encode a TIFF LZW stream (MSB-first codes with early change, as written by libtiff)
+     */
+    private static byte[] lzwEncode(byte[] raw) {
+        BitWriter out = new BitWriter();
+        Map<Integer, Integer> table = new HashMap<>();
+        int codeLength = 9;
+        int next = 258;
+        out.write(256, codeLength);
+        int string = raw.length > 0 ? raw[0] & 0xFF : -1;
+        for (int i = 1; i < raw.length; i++) {
+            int key = (string << 8) | (raw[i] & 0xFF);
+            Integer code = table.get(key);
+            if (code != null) {
+                string = code;
+                continue;
+            }
+            out.write(string, codeLength);
+            table.put(key, next++);
+            if (next == 4094) {
+                // table full: clear it before the decoder runs out of 12-bit codes
+                out.write(256, codeLength);
+                table.clear();
+                codeLength = 9;
+                next = 258;
+            } else if (next >= (1 << codeLength)) {
+                codeLength++;
+            }
+            string = raw[i] & 0xFF;
+        }
+        if (string >= 0) {
+            out.write(string, codeLength);
+            // the decoder adds an entry for the last code before it reads the end of information
+            if (++next >= (1 << codeLength) && codeLength < 12) codeLength++;
+        }
+        out.write(257, codeLength);
+        return out.toByteArray();
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long buffer;
+        private int count;
+
+        void write(int code, int length) {
+            buffer = (buffer << length) | code;
+            count += length;
+            while (count >= 8) {
+                out.write((int) (buffer >>> (count - 8)));
+                count -= 8;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (count > 0) out.write((int) (buffer << (8 - count)));
+            count = 0;
+            return out.toByteArray();
+        }
+    }
+}
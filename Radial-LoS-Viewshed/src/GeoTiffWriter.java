@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming writer of single-band, deflate compressed, tiled GeoTIFFs in WGS84 (EPSG:4326). The image is produced in
+ * rows of {@link #TILE_SIZE}x{@link #TILE_SIZE} tiles, which are compressed in parallel and appended to the file in
+ * order while later rows are still being compressed; the directory with the tile offsets follows the tiles at the end
+ * of the file. Only a window of tile rows is held in memory, never the whole image. The files can be read back by
+ * {@link GeoTiffReader}.
+ */
+public class GeoTiffWriter {
+
+    public static final int SAMPLE_FORMAT_UINT = 1;
+    public static final int SAMPLE_FORMAT_INT = 2;
+    public static final int SAMPLE_FORMAT_FLOAT = 3;
+
+    private static final int TILE_SIZE = 256;
+    // TIFF field types
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_DOUBLE = 12;
+
+    private final int width;
+    private final int height;
+    private final int bitsPerSample;
+    private final int sampleFormat;
+    private final int bytesPerSample;
+
+    /**
+     * @param width width of the image
+     * @param height height of the image
+     * @param bitsPerSample 8, 16 or 32
+     * @param sampleFormat {@link #SAMPLE_FORMAT_UINT}, {@link #SAMPLE_FORMAT_INT} or {@link #SAMPLE_FORMAT_FLOAT}
+     */
+    public GeoTiffWriter(int width, int height, int bitsPerSample, int sampleFormat) {
+        if (bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 32) {
+            throw new IllegalArgumentException("Unsupported bits per sample: " + bitsPerSample);
+        }
+        this.width = width;
+        this.height = height;
+        this.bitsPerSample = bitsPerSample;
+        this.sampleFormat = sampleFormat;
+        this.bytesPerSample = bitsPerSample / 8;
+    }
+
+    /**
+     * @return bytes per row that the row source has to fill (little-endian samples)
+     */
+    public int getRowBytes() {
+        return width * bytesPerSample;
+    }
+
+    /**
+     * Encode the image into a file
+     * @param file destination tif file
+     * @param source rows of the image, {@link #getRowBytes()} bytes of little-endian samples per row
+     * @param minLon western border of the image
+     * @param maxLon eastern border of the image
+     * @param minLat southern border of the image
+     * @param maxLat northern border of the image
+     * @param noData value of cells without data, or null
+     */
+    public void write(Path file, RowSource source, double minLon, double maxLon, double minLat, double maxLat, String noData) throws IOException {
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        long[] offsets = new long[tilesAcross * tilesDown];
+        long[] byteCounts = new long[offsets.length];
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int window = pool.getParallelism() + 1;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // header, the offset of the directory is patched in at the end
+            long position = 8;
+            channel.position(position);
+
+            ArrayDeque<ForkJoinTask<byte[][]>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            for (int tileRow = 0; tileRow < tilesDown; tileRow++) {
+                while (submitted < tilesDown && submitted < tileRow + window) {
+                    int index = submitted++;
+                    pending.add(pool.submit(() -> encodeTileRow(source, index, tilesAcross)));
+                }
+                byte[][] tiles = pending.remove().join();
+                for (int column = 0; column < tilesAcross; column++) {
+                    int tile = tileRow * tilesAcross + column;
+                    offsets[tile] = position;
+                    byteCounts[tile] = tiles[column].length;
+                    position += writeFully(channel, ByteBuffer.wrap(tiles[column]));
+                }
+            }
+            if (position > 0xFFFFFFFFL) throw new IOException("GeoTIFF larger than 4 GB: " + file);
+
+            // the directory starts on a word boundary
+            long directory = (position + 1) & ~1L;
+            ByteBuffer ifd = createDirectory(directory, offsets, byteCounts, minLon, maxLon, minLat, maxLat, noData);
+            channel.position(directory);
+            writeFully(channel, ifd);
+
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) directory).flip();
+            channel.position(0);
+            writeFully(channel, header);
+        }
+    }
+
+    /**
+     * Encode and deflate the tiles of a row of tiles. Tiles at the right and bottom borders are padded with zeros.
+     */
+    private byte[][] encodeTileRow(RowSource source, int tileRow, int tilesAcross) {
+        int rowBytes = getRowBytes();
+        int tileRowBytes = TILE_SIZE * bytesPerSample;
+        int start = tileRow * TILE_SIZE;
+        int rows = Math.min(TILE_SIZE, height - start);
+        byte[] band = new byte[rows * rowBytes];
+        byte[] row = new byte[rowBytes];
+        for (int y = 0; y < rows; y++) {
+            source.getRow(start + y, row);
+            System.arraycopy(row, 0, band, y * rowBytes, rowBytes);
+        }
+
+        byte[][] tiles = new byte[tilesAcross][];
+        byte[] raw = new byte[TILE_SIZE * tileRowBytes];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            for (int column = 0; column < tilesAcross; column++) {
+                Arrays.fill(raw, (byte) 0);
+                int x = column * TILE_SIZE * bytesPerSample;
+                int length = Math.min(tileRowBytes, rowBytes - x);
+                for (int y = 0; y < rows; y++) {
+                    System.arraycopy(band, y * rowBytes + x, raw, y * tileRowBytes, length);
+                }
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] data = new byte[raw.length / 8 + 64];
+                int count = 0;
+                while (!deflater.finished()) {
+                    if (count == data.length) data = Arrays.copyOf(data, 2 * data.length);
+                    count += deflater.deflate(data, count, data.length - count);
+                }
+                tiles[column] = Arrays.copyOf(data, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        return tiles;
+    }
+
+    /**
+     * Build the image file directory, followed by the values that do not fit into its entries
+     * @param start position of the directory in the file
+     */
+    private ByteBuffer createDirectory(long start, long[] offsets, long[] byteCounts, double minLon, double maxLon,
+                                       double minLat, double maxLat, String noData) {
+        double[] pixelScale = {(maxLon - minLon) / width, (maxLat - minLat) / height, 0};
+        // raster point (0, 0) is the north-western corner of the image
+        double[] tiePoint = {0, 0, 0, minLon, maxLat, 0};
+        short[] geoKeys = {
+                1, 1, 0, 3,
+                1024, 0, 1, 2,      // GTModelTypeGeoKey: geographic
+                1025, 0, 1, 1,      // GTRasterTypeGeoKey: pixel is area
+                2048, 0, 1, 4326    // GeographicTypeGeoKey: WGS84
+        };
+        byte[] noDataBytes = noData == null ? null : (noData + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        int entries = noData == null ? 15 : 16;
+        int directorySize = 2 + 12 * entries + 4;
+        int extraSize = 8 * offsets.length + 8 * pixelScale.length + 8 * tiePoint.length + 2 * geoKeys.length
+                + (noDataBytes == null ? 0 : noDataBytes.length);
+        ByteBuffer buffer = ByteBuffer.allocate(directorySize + extraSize).order(ByteOrder.LITTLE_ENDIAN);
+        // values that do not fit into 4 bytes follow the directory
+        long extra = start + directorySize;
+        long offsetsAt = extra;
+        long countsAt = offsetsAt + 4L * offsets.length;
+        long scaleAt = countsAt + 4L * offsets.length;
+        long tieAt = scaleAt + 8L * pixelScale.length;
+        long keysAt = tieAt + 8L * tiePoint.length;
+        long noDataAt = keysAt + 2L * geoKeys.length;
+
+        buffer.putShort((short) entries);
+        // tags in ascending order
+        putEntry(buffer, 256, TYPE_LONG, 1, width);
+        putEntry(buffer, 257, TYPE_LONG, 1, height);
+        putEntry(buffer, 258, TYPE_SHORT, 1, bitsPerSample);
+        putEntry(buffer, 259, TYPE_SHORT, 1, 8);                // compression: deflate
+        putEntry(buffer, 262, TYPE_SHORT, 1, 1);                // photometric: black is zero
+        putEntry(buffer, 277, TYPE_SHORT, 1, 1);                // samples per pixel
+        putEntry(buffer, 284, TYPE_SHORT, 1, 1);                // planar configuration: chunky
+        putEntry(buffer, 322, TYPE_SHORT, 1, TILE_SIZE);
+        putEntry(buffer, 323, TYPE_SHORT, 1, TILE_SIZE);
+        putOffsets(buffer, 324, offsets, offsetsAt);
+        putOffsets(buffer, 325, byteCounts, countsAt);
+        putEntry(buffer, 339, TYPE_SHORT, 1, sampleFormat);
+        putEntry(buffer, 33550, TYPE_DOUBLE, pixelScale.length, scaleAt);
+        putEntry(buffer, 33922, TYPE_DOUBLE, tiePoint.length, tieAt);
+        putEntry(buffer, 34735, TYPE_SHORT, geoKeys.length, keysAt);
+        if (noDataBytes != null) {
+            // GDAL_NODATA, ASCII values of up to 4 bytes are stored in the entry itself
+            if (noDataBytes.length <= 4) {
+                buffer.putShort((short) 42113).putShort((short) TYPE_ASCII).putInt(noDataBytes.length).put(Arrays.copyOf(noDataBytes, 4));
+            } else {
+                putEntry(buffer, 42113, TYPE_ASCII, noDataBytes.length, noDataAt);
+            }
+        }
+        buffer.putInt(0);   // no further directory
+
+        for (long offset : offsets) buffer.putInt((int) offset);
+        for (long count : byteCounts) buffer.putInt((int) count);
+        for (double value : pixelScale) buffer.putDouble(value);
+        for (double value : tiePoint) buffer.putDouble(value);
+        for (short value : geoKeys) buffer.putShort(value);
+        if (noDataBytes != null && noDataBytes.length > 4) buffer.put(noDataBytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Entry with a single tile offset (or byte count) in the entry itself, or with the offset of the array of them
+     */
+    private static void putOffsets(ByteBuffer buffer, int tag, long[] values, long arrayAt) {
+        putEntry(buffer, tag, TYPE_LONG, values.length, values.length == 1 ? values[0] : arrayAt);
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, long value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == TYPE_SHORT && count == 1) {
+            buffer.putShort((short) value).putShort((short) 0);
+        } else {
+            buffer.putInt((int) value);
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) written += channel.write(buffer);
+        return written;
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.List;
+
+/**
+ * Pixel window of the grid that a viewshed works on. The grid is the mosaic of whole 1x1 degree DEM tiles covering
+ * the radius, georeferenced with a half-pixel shift at its borders, and the window is the part of it that is
+ * actually needed: either all of it or only the bounding box of the radius.
+ * The DEM lookups, the result raster and the exported image all cover just the window.
+ */
+public class GridWindow {
+
+    public static final double MIN_SHIFT = -0.00013888888;
+    public static final double MAX_SHIFT = 0.00013888888889;
+    // extra pixels around the bounding box of the radius
+    private static final int MARGIN = 1;
+
+    private final int westTile;
+    private final int northTile;
+    private final int tileColumns;
+    private final int tileRows;
+    private final int tileSize;
+    private final double gridMinLon;
+    private final double gridMaxLat;
+    private final double lonStep;
+    private final double latStep;
+    private final int offsetX;
+    private final int offsetY;
+    private final int width;
+    private final int height;
+
+    private GridWindow(int westTile, int northTile, int tileColumns, int tileRows, int tileSize,
+                       int offsetX, int offsetY, int width, int height) {
+        this.westTile = westTile;
+        this.northTile = northTile;
+        this.tileColumns = tileColumns;
+        this.tileRows = tileRows;
+        this.tileSize = tileSize;
+        this.gridMinLon = westTile + MIN_SHIFT;
+        this.gridMaxLat = northTile + 1 + MAX_SHIFT;
+        this.lonStep = (westTile + tileColumns + MAX_SHIFT - gridMinLon) / (tileColumns * tileSize);
+        this.latStep = (gridMaxLat - (northTile - tileRows + 1 + MIN_SHIFT)) / (tileRows * tileSize);
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Window covering whole tiles
+     * @param westTile longitude of the western tile column
+     * @param eastTile longitude of the eastern tile column
+     * @param southTile latitude of the southern tile row
+     * @param northTile latitude of the northern tile row
+     * @param tileSize width/height of a single DEM tile in pixels
+     * @return the window
+     */
+    public static GridWindow forTiles(int westTile, int eastTile, int southTile, int northTile, int tileSize) {
+        int tileColumns = eastTile - westTile + 1;
+        int tileRows = northTile - southTile + 1;
+        return new GridWindow(westTile, northTile, tileColumns, tileRows, tileSize, 0, 0, tileColumns * tileSize, tileRows * tileSize);
+    }
+
+    /**
+     * Window covering only the bounding box of the radius around an observer, within the tiles it touches
+     * @param su spatial utils (for the geodesic calculations)
+     * @param lon longitude of the observer
+     * @param lat latitude of the observer
+     * @param radius radius in meters
+     * @param tileSize width/height of a single DEM tile in pixels
+     * @return the window
+     */
+    public static GridWindow forObserver(SpatialUtils su, double lon, double lat, double radius, int tileSize) {
+        double[] north = su.calculateFarthestPoint(lat, lon, 0.0, radius);
+        double[] east = su.calculateFarthestPoint(lat, lon, 90.0, radius);
+        double[] south = su.calculateFarthestPoint(lat, lon, 180.0, radius);
+        double[] west = su.calculateFarthestPoint(lat, lon, 270.0, radius);
+        GridWindow tiles = forTiles(su.getIntegerPart(west[1]), su.getIntegerPart(east[1]),
+                su.getIntegerPart(south[0]), su.getIntegerPart(north[0]), tileSize);
+        return tiles.crop(west[1], east[1], south[0], north[0]);
+    }
+
+    /**
+     * Window covering the tiles of several observers
+     * @param su spatial utils (for the geodesic calculations)
+     * @param requests the observers
+     * @param tileSize width/height of a single DEM tile in pixels
+     * @return window over the union of the tiles of all observers
+     */
+    public static GridWindow forObservers(SpatialUtils su, List<ViewshedRequest> requests, int tileSize) {
+        int westTile = Integer.MAX_VALUE;
+        int eastTile = Integer.MIN_VALUE;
+        int southTile = Integer.MAX_VALUE;
+        int northTile = Integer.MIN_VALUE;
+        for (ViewshedRequest request : requests) {
+            GridWindow window = forObserver(su, request.getLongitude(), request.getLatitude(), request.getRadius(), tileSize);
+            westTile = Math.min(westTile, window.westTile);
+            eastTile = Math.max(eastTile, window.westTile + window.tileColumns - 1);
+            northTile = Math.max(northTile, window.northTile);
+            southTile = Math.min(southTile, window.northTile - window.tileRows + 1);
+        }
+        return forTiles(westTile, eastTile, southTile, northTile, tileSize);
+    }
+
+    /**
+     * Crop the window to the bounding box of the radius around an observer
+     * @param su spatial utils (for the geodesic calculations)
+     * @param lon longitude of the observer
+     * @param lat latitude of the observer
+     * @param radius radius in meters
+     * @return window over the same tiles
+     */
+    public GridWindow cropToRadius(SpatialUtils su, double lon, double lat, double radius) {
+        double[] north = su.calculateFarthestPoint(lat, lon, 0.0, radius);
+        double[] east = su.calculateFarthestPoint(lat, lon, 90.0, radius);
+        double[] south = su.calculateFarthestPoint(lat, lon, 180.0, radius);
+        double[] west = su.calculateFarthestPoint(lat, lon, 270.0, radius);
+        return crop(west[1], east[1], south[0], north[0]);
+    }
+
+    /**
+     * Crop the window to the pixels covering the given bounding box (plus a small margin)
+     * @return window over the same tiles
+     */
+    public GridWindow crop(double westLon, double eastLon, double southLat, double northLat) {
+        int x0 = Math.max(offsetX, (int) Math.floor((westLon - gridMinLon) / lonStep) - MARGIN);
+        int x1 = Math.min(offsetX + width, (int) Math.ceil((eastLon - gridMinLon) / lonStep) + MARGIN);
+        int y0 = Math.max(offsetY, (int) Math.floor((gridMaxLat - northLat) / latStep) - MARGIN);
+        int y1 = Math.min(offsetY + height, (int) Math.ceil((gridMaxLat - southLat) / latStep) + MARGIN);
+        return new GridWindow(westTile, northTile, tileColumns, tileRows, tileSize,
+                x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+
+    /**
+     * Smallest window covering this window and another window over the same tiles
+     * @param other the other window
+     * @return window over the same tiles
+     */
+    public GridWindow union(GridWindow other) {
+        int x0 = Math.min(offsetX, other.offsetX);
+        int y0 = Math.min(offsetY, other.offsetY);
+        int x1 = Math.max(offsetX + width, other.offsetX + other.width);
+        int y1 = Math.max(offsetY + height, other.offsetY + other.height);
+        return new GridWindow(westTile, northTile, tileColumns, tileRows, tileSize, x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Set the borders and the dimensions of the grid of a SpatialUtils to this window
+     */
+    public void applyTo(SpatialUtils su) {
+        su.setGridBorders(getMinLon(), getMaxLon(), getMinLat(), getMaxLat());
+        su.setGridWidth(width);
+        su.setGridHeight(height);
+    }
+
+    /**
+     * @return a new mosaic of the tiles of the window, addressed in window pixels
+     */
+    public DemMosaic createMosaic() {
+        return getView(new DemMosaic(westTile, northTile, tileColumns, tileRows, tileSize));
+    }
+
+    /**
+     * @param mosaic mosaic of the tiles of this window (e.g. shared between several windows)
+     * @return view of the mosaic addressed in window pixels
+     */
+    public DemMosaic getView(DemMosaic mosaic) {
+        return mosaic.window(offsetX, offsetY);
+    }
+
+    public double getMinLon() {
+        return gridMinLon + offsetX * lonStep;
+    }
+
+    public double getMaxLon() {
+        return getMinLon() + width * lonStep;
+    }
+
+    public double getMaxLat() {
+        return gridMaxLat - offsetY * latStep;
+    }
+
+    public double getMinLat() {
+        return getMaxLat() - height * latStep;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return column of the window in the tile mosaic
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return row of the window in the tile mosaic
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    public int getWestTile() {
+        return westTile;
+    }
+
+    public int getNorthTile() {
+        return northTile;
+    }
+
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Point-to-point line of sight queries. A query walks only the cells of the single ray from the observer to the
+ * target, with the same traversal, distances and curvature as the viewshed (mode 3), so it costs microseconds
+ * instead of a full viewshed. There are no lookup tables to build: the sines and cosines of the haversine terms
+ * are computed for the first cell and then rotated by one row or column step as the ray moves. Tiles are fetched lazily from the {@link DemTileCache} on first touch.
+ * <p>
+ * Instances are thread safe, and batches of pairs are evaluated in parallel on a fork-join pool.
+ */
+public class LineOfSight {
+
+    private static final int TILE_SIZE = 3601;
+    // pairs per task of a batch
+    private static final int BATCH_SIZE = 1024;
+
+    private final DemMosaic dem;
+    private final double radius;
+    private final double minLon;
+    private final double maxLat;
+    private final double lonStep;
+    private final double latStep;
+    private final int gridWidth;
+    private final int gridHeight;
+    // sines and cosines of the steps between rows and columns, in radians
+    private final double sinLatStep;
+    private final double cosLatStep;
+    private final double sinHalfLatStep;
+    private final double cosHalfLatStep;
+    private final double sinHalfLonStep;
+    private final double cosHalfLonStep;
+
+    /**
+     * @param westTile longitude of the western tile column that queries may touch
+     * @param eastTile longitude of the eastern tile column
+     * @param southTile latitude of the southern tile row
+     * @param northTile latitude of the northern tile row
+     */
+    public LineOfSight(int westTile, int eastTile, int southTile, int northTile) {
+        GridWindow window = GridWindow.forTiles(westTile, eastTile, southTile, northTile, TILE_SIZE);
+        this.dem = window.createMosaic();
+        this.radius = new SpatialUtils(new RasterUtils(TILE_SIZE)).R;
+        this.minLon = window.getMinLon();
+        this.maxLat = window.getMaxLat();
+        this.gridWidth = window.getWidth();
+        this.gridHeight = window.getHeight();
+        this.lonStep = (window.getMaxLon() - minLon) / gridWidth;
+        this.latStep = (maxLat - window.getMinLat()) / gridHeight;
+        this.sinLatStep = Math.sin(Math.toRadians(latStep));
+        this.cosLatStep = Math.cos(Math.toRadians(latStep));
+        this.sinHalfLatStep = Math.sin(Math.toRadians(latStep) / 2);
+        this.cosHalfLatStep = Math.cos(Math.toRadians(latStep) / 2);
+        this.sinHalfLonStep = Math.sin(Math.toRadians(lonStep) / 2);
+        this.cosHalfLonStep = Math.cos(Math.toRadians(lonStep) / 2);
+    }
+
+    /**
+     * Check whether a target is visible from an observer
+     * @param observerLon longitude of the observer
+     * @param observerLat latitude of the observer
+     * @param observerHeight height of the observer (as in {@link PointOfInterest})
+     * @param targetLon longitude of the target
+     * @param targetLat latitude of the target
+     * @param targetHeight height of the target above the ground
+     * @return visibility, clearance and obstruction, or {@link LineOfSightResult#outsideDem()} if the observer or the
+     * target is outside the tiles
+     */
+    public LineOfSightResult query(double observerLon, double observerLat, double observerHeight,
+                                   double targetLon, double targetLat, double targetHeight) {
+        LineOfSightBatch batch = new LineOfSightBatch(1);
+        batch.add(observerLon, observerLat, observerHeight, targetLon, targetLat, targetHeight);
+        trace(batch, 0);
+        return batch.getResult(0);
+    }
+
+    /**
+     * Answer all pairs of a batch in parallel. Pairs outside the tiles are answered with
+     * {@link LineOfSightBatch#isOutsideDem}.
+     * @param batch the pairs, receives the answers
+     * @param numThreads number of threads
+     */
+    public void evaluate(LineOfSightBatch batch, int numThreads) {
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(new PairTask(batch, 0, batch.size()));
+        } finally {
+            pool.shutdown();
+        }
+        long duration = System.currentTimeMillis() - start;
+        System.out.println("Time taken to answer " + batch.size() + " line of sight queries: " + duration + " milliseconds ("
+                + (batch.size() * 1000.0 / Math.max(1, duration)) + " queries per second)");
+    }
+
+    /**
+     * Walk the ray of a pair and store its answer. Allocates nothing.
+     */
+    private void trace(LineOfSightBatch batch, int index) {
+        double observerLon = batch.getObserverLon(index);
+        double observerLat = batch.getObserverLat(index);
+        double observerHeight = batch.getObserverHeight(index);
+        double x1 = (observerLon - minLon) / lonStep;
+        double y1 = (maxLat - observerLat) / latStep;
+        // aim at the center of the target cell, so the walk cannot end at a neighbour when the ray passes a corner
+        double x2 = Math.floor((batch.getTargetLon(index) - minLon) / lonStep) + 0.5;
+        double y2 = Math.floor((maxLat - batch.getTargetLat(index)) / latStep) + 0.5;
+        if (!isInGrid(x1, y1) || !isInGrid(x2, y2)) {
+            // answer the pair as such instead of failing the rest of its batch
+            batch.setOutsideDem(index);
+            return;
+        }
+
+        double observerLatRadians = Math.toRadians(observerLat);
+        double cosObserverLat = Math.cos(observerLatRadians);
+
+        double x = x1;
+        double y = y1;
+        double slopeMax = Double.NEGATIVE_INFINITY;
+        int obstructionX = -1;
+        int obstructionY = -1;
+        double obstructionElevation = Double.NaN;
+        double obstructionDistance = Double.NaN;
+
+        double deltaX = x2 - x1;
+        double deltaY = y2 - y1;
+        double stepX = Math.signum(deltaX);
+        double stepY = Math.signum(deltaY);
+        double xOffset = x2 > x1 ? (Math.ceil(x1) - x1) : (x1 - Math.floor(x1));
+        double yOffset = y2 > y1 ? (Math.ceil(y1) - y1) : (y1 - Math.floor(y1));
+        double angle = Math.atan2(-deltaY, deltaX);
+        double tMaxX = xOffset / Math.cos(angle);
+        double tMaxY = yOffset / Math.sin(angle);
+        double tDeltaX = 1.0 / Math.cos(angle);
+        double tDeltaY = 1.0 / Math.sin(angle);
+
+        // sine and cosine of half the latitude difference and of the latitude of the current row,
+        // and of half the longitude difference of the current column
+        double lat = Math.toRadians(maxLat - (int) y1 * latStep);
+        double sinHalfDeltaLat = Math.sin((lat - observerLatRadians) / 2);
+        double cosHalfDeltaLat = Math.cos((lat - observerLatRadians) / 2);
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        double halfDeltaLon = (Math.toRadians(minLon + (int) x1 * lonStep) - Math.toRadians(observerLon)) / 2;
+        double sinHalfDeltaLon = Math.sin(halfDeltaLon);
+        double cosHalfDeltaLon = Math.cos(halfDeltaLon);
+
+        double manhattanDistance = Math.abs(Math.floor(x2) - Math.floor(x1)) + Math.abs(Math.floor(y2) - Math.floor(y1));
+        for (double t = 0; t <= manhattanDistance; ++t) {
+            int cellX = (int) x;
+            int cellY = (int) y;
+            double a = sinHalfDeltaLat * sinHalfDeltaLat + cosObserverLat * cosLat * sinHalfDeltaLon * sinHalfDeltaLon;
+            double distance = ObserverGeometry.getArcLength(a, radius);
+            double curvature = ObserverGeometry.getCurvatureDrop(distance, radius);
+            double elevation = dem.getElevation(cellX, cellY);
+
+            if (t == manhattanDistance) {
+                // the last cell of the walk is the target
+                double slope = (elevation + batch.getTargetHeight(index) - curvature - observerHeight) / distance;
+                double clearance = slopeMax == Double.NEGATIVE_INFINITY ? Double.POSITIVE_INFINITY : (slope - slopeMax) * distance;
+                double obstructionLon = obstructionX < 0 ? Double.NaN : minLon + obstructionX * lonStep;
+                double obstructionLat = obstructionY < 0 ? Double.NaN : maxLat - obstructionY * latStep;
+                batch.setResult(index, slope > slopeMax, clearance, distance, obstructionLon, obstructionLat,
+                        obstructionElevation, obstructionDistance);
+                return;
+            }
+
+            // the observer's own corner has no direction, so it cannot block anything
+            if (distance > 0) {
+                double slope = (elevation - curvature - observerHeight) / distance;
+                if (slope > slopeMax) {
+                    slopeMax = slope;
+                    obstructionX = cellX;
+                    obstructionY = cellY;
+                    obstructionElevation = elevation;
+                    obstructionDistance = distance;
+                }
+            }
+
+            //Only move in either X or Y coordinates, not both.
+            if (Math.abs(tMaxX) < Math.abs(tMaxY)) {
+                tMaxX += tDeltaX;
+                x += stepX;
+                // longitude grows with the column
+                double sin = sinHalfDeltaLon * cosHalfLonStep + stepX * cosHalfDeltaLon * sinHalfLonStep;
+                cosHalfDeltaLon = cosHalfDeltaLon * cosHalfLonStep - stepX * sinHalfDeltaLon * sinHalfLonStep;
+                sinHalfDeltaLon = sin;
+            } else {
+                tMaxY += tDeltaY;
+                y += stepY;
+                // latitude shrinks with the row
+                double sin = sinHalfDeltaLat * cosHalfLatStep - stepY * cosHalfDeltaLat * sinHalfLatStep;
+                cosHalfDeltaLat = cosHalfDeltaLat * cosHalfLatStep + stepY * sinHalfDeltaLat * sinHalfLatStep;
+                sinHalfDeltaLat = sin;
+                sin = sinLat * cosLatStep - stepY * cosLat * sinLatStep;
+                cosLat = cosLat * cosLatStep + stepY * sinLat * sinLatStep;
+                sinLat = sin;
+            }
+        }
+    }
+
+    private boolean isInGrid(double x, double y) {
+        return x >= 0 && y >= 0 && x < gridWidth && y < gridHeight;
+    }
+
+    /**
+     * Fork-join task answering a range of the pairs of a batch
+     */
+    private class PairTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final LineOfSightBatch batch;
+        private final int start;
+        private final int end;
+
+        PairTask(LineOfSightBatch batch, int start, int end) {
+            this.batch = batch;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PairTask(batch, start, middle), new PairTask(batch, middle, end));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                trace(batch, i);
+            }
+        }
+    }
+}
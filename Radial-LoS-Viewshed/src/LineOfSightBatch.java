@@ -0,0 +1,145 @@
+import java.util.Arrays;
+
+/**
+ * Many observer/target pairs and their answers, kept in flat primitive arrays so that millions of pairs
+ * cost no objects per pair. Pairs are added first and {@link LineOfSight#evaluate} fills in the answers.
+ */
+public class LineOfSightBatch {
+
+    private int size;
+    // observer lon, lat, height and target lon, lat, height of every pair
+    private double[] pairs;
+    private boolean[] visible;
+    // pairs whose observer or target is outside the DEM tiles
+    private boolean[] outsideDem;
+    private double[] clearance;
+    private double[] distance;
+    // lon, lat, elevation and distance of the obstruction of every pair
+    private double[] obstructions;
+
+    /**
+     * @param capacity expected number of pairs
+     */
+    public LineOfSightBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        pairs = new double[6 * capacity];
+        visible = new boolean[capacity];
+        outsideDem = new boolean[capacity];
+        clearance = new double[capacity];
+        distance = new double[capacity];
+        obstructions = new double[4 * capacity];
+    }
+
+    /**
+     * Add a pair
+     * @param observerLon longitude of the observer
+     * @param observerLat latitude of the observer
+     * @param observerHeight height of the observer (as in {@link PointOfInterest})
+     * @param targetLon longitude of the target
+     * @param targetLat latitude of the target
+     * @param targetHeight height of the target above the ground
+     * @return index of the pair
+     */
+    public int add(double observerLon, double observerLat, double observerHeight, double targetLon, double targetLat, double targetHeight) {
+        if (size == visible.length) {
+            int capacity = 2 * size;
+            pairs = Arrays.copyOf(pairs, 6 * capacity);
+            visible = Arrays.copyOf(visible, capacity);
+            outsideDem = Arrays.copyOf(outsideDem, capacity);
+            clearance = Arrays.copyOf(clearance, capacity);
+            distance = Arrays.copyOf(distance, capacity);
+            obstructions = Arrays.copyOf(obstructions, 4 * capacity);
+        }
+        int offset = 6 * size;
+        pairs[offset] = observerLon;
+        pairs[offset + 1] = observerLat;
+        pairs[offset + 2] = observerHeight;
+        pairs[offset + 3] = targetLon;
+        pairs[offset + 4] = targetLat;
+        pairs[offset + 5] = targetHeight;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getObserverLon(int index) {
+        return pairs[6 * index];
+    }
+
+    public double getObserverLat(int index) {
+        return pairs[6 * index + 1];
+    }
+
+    public double getObserverHeight(int index) {
+        return pairs[6 * index + 2];
+    }
+
+    public double getTargetLon(int index) {
+        return pairs[6 * index + 3];
+    }
+
+    public double getTargetLat(int index) {
+        return pairs[6 * index + 4];
+    }
+
+    public double getTargetHeight(int index) {
+        return pairs[6 * index + 5];
+    }
+
+    /**
+     * Store the answer of a pair
+     */
+    void setResult(int index, boolean visible, double clearance, double distance, double obstructionLon, double obstructionLat,
+                   double obstructionElevation, double obstructionDistance) {
+        this.visible[index] = visible;
+        this.clearance[index] = clearance;
+        this.distance[index] = distance;
+        int offset = 4 * index;
+        obstructions[offset] = obstructionLon;
+        obstructions[offset + 1] = obstructionLat;
+        obstructions[offset + 2] = obstructionElevation;
+        obstructions[offset + 3] = obstructionDistance;
+    }
+
+    /**
+     * Store the answer of a pair that is outside the DEM tiles
+     */
+    void setOutsideDem(int index) {
+        setResult(index, false, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        outsideDem[index] = true;
+    }
+
+    public boolean isVisible(int index) {
+        return visible[index];
+    }
+
+    /**
+     * @see LineOfSightResult#getClearance()
+     */
+    public double getClearance(int index) {
+        return clearance[index];
+    }
+
+    public double getDistance(int index) {
+        return distance[index];
+    }
+
+    /**
+     * @see LineOfSightResult#isOutsideDem()
+     */
+    public boolean isOutsideDem(int index) {
+        return outsideDem[index];
+    }
+
+    /**
+     * @return the answer of a pair as an object
+     */
+    public LineOfSightResult getResult(int index) {
+        if (outsideDem[index]) return LineOfSightResult.outsideDem();
+        int offset = 4 * index;
+        return new LineOfSightResult(visible[index], clearance[index], distance[index], obstructions[offset],
+                obstructions[offset + 1], obstructions[offset + 2], obstructions[offset + 3]);
+    }
+}
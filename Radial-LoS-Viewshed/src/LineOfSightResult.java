@@ -0,0 +1,94 @@
+/**
+ * Answer of a single line of sight query
+ */
+public class LineOfSightResult {
+
+    private final boolean visible;
+    private final double clearance;
+    private final double distance;
+    private final double obstructionLon;
+    private final double obstructionLat;
+    private final double obstructionElevation;
+    private final double obstructionDistance;
+    private final boolean outsideDem;
+
+    /**
+     * @param visible whether the target is visible from the observer
+     * @param clearance height of the target above (positive) or below (negative) the sight line over the highest obstruction
+     * @param distance distance between observer and target in meters
+     * @param obstructionLon longitude of the cell that limits the sight line, NaN if there is none
+     * @param obstructionLat latitude of the cell that limits the sight line, NaN if there is none
+     * @param obstructionElevation elevation of that cell, NaN if there is none
+     * @param obstructionDistance distance of that cell from the observer, NaN if there is none
+     */
+    public LineOfSightResult(boolean visible, double clearance, double distance, double obstructionLon, double obstructionLat,
+                             double obstructionElevation, double obstructionDistance) {
+        this(visible, clearance, distance, obstructionLon, obstructionLat, obstructionElevation, obstructionDistance, false);
+    }
+
+    private LineOfSightResult(boolean visible, double clearance, double distance, double obstructionLon, double obstructionLat,
+                              double obstructionElevation, double obstructionDistance, boolean outsideDem) {
+        this.visible = visible;
+        this.clearance = clearance;
+        this.distance = distance;
+        this.obstructionLon = obstructionLon;
+        this.obstructionLat = obstructionLat;
+        this.obstructionElevation = obstructionElevation;
+        this.obstructionDistance = obstructionDistance;
+        this.outsideDem = outsideDem;
+    }
+
+    /**
+     * @return answer of a pair whose observer or target is outside the DEM tiles: not visible, every value NaN
+     */
+    public static LineOfSightResult outsideDem() {
+        return new LineOfSightResult(false, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, true);
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * @return whether the observer or the target is outside the DEM tiles, so the pair was not answered
+     */
+    public boolean isOutsideDem() {
+        return outsideDem;
+    }
+
+    /**
+     * @return meters the target is above the sight line grazing the highest obstruction (negative if hidden),
+     * infinite if there are no cells between observer and target
+     */
+    public double getClearance() {
+        return clearance;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getObstructionLon() {
+        return obstructionLon;
+    }
+
+    public double getObstructionLat() {
+        return obstructionLat;
+    }
+
+    public double getObstructionElevation() {
+        return obstructionElevation;
+    }
+
+    public double getObstructionDistance() {
+        return obstructionDistance;
+    }
+
+    @Override
+    public String toString() {
+        if (outsideDem) return "LineOfSightResult{outside the DEM}";
+        return "LineOfSightResult{visible=" + visible + ", clearance=" + clearance + ", distance=" + distance
+                + ", obstruction=" + obstructionLon + "/" + obstructionLat + " (" + obstructionElevation + " m at "
+                + obstructionDistance + " m)}";
+    }
+}
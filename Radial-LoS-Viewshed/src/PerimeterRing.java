@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * The ordered ring of boundary cells of the viewing disc of an observer. A cell belongs to the disc when its
+ * distance from the observer is within the radius, and to the ring when one of its 4-neighbours is outside the disc
+ * (or the grid). The ring is generated in one pass over the rows of the disc and ordered clockwise by azimuth,
+ * starting at north, so it can be split between threads by plain index ranges.
+ */
+public class PerimeterRing {
+
+    // packed x,y pairs
+    private final int[] cells;
+    private final double[] azimuths;
+
+    /**
+     * Generate the ring
+     * @param geometry lookup tables of the observer
+     * @param radius radius in meters
+     * @param gridWidth width of the grid
+     * @param gridHeight height of the grid
+     */
+    public PerimeterRing(ObserverGeometry geometry, double radius, int gridWidth, int gridHeight) {
+        double observerX = geometry.getObserverX();
+        double observerY = geometry.getObserverY();
+        int centerX = Math.max(0, Math.min(gridWidth - 1, (int) observerX));
+        int centerY = Math.max(0, Math.min(gridHeight - 1, (int) observerY));
+
+        // the distance along a row is smallest at the column of the observer (or the one after it) and grows to both sides
+        if (centerX + 1 < gridWidth && geometry.getDistance(centerX + 1, centerY) < geometry.getDistance(centerX, centerY)) {
+            centerX++;
+        }
+
+        // extent [left, right] of the disc in every row, empty rows have left > right
+        int[] left = new int[gridHeight];
+        int[] right = new int[gridHeight];
+        for (int y = 0; y < gridHeight; y++) {
+            if (geometry.getDistance(centerX, y) > radius) {
+                left[y] = 1;
+                right[y] = 0;
+                continue;
+            }
+            left[y] = lastWithinRadius(geometry, radius, y, centerX, 0);
+            right[y] = lastWithinRadius(geometry, radius, y, centerX, gridWidth - 1);
+        }
+
+        int count = 0;
+        int[] packed = new int[1024];
+        for (int y = 0; y < gridHeight; y++) {
+            if (left[y] > right[y]) continue;
+            // cells strictly inside this row whose neighbours above and below are inside the disc as well
+            int interiorStart = left[y] + 1;
+            int interiorEnd = right[y] - 1;
+            if (y == 0 || y == gridHeight - 1) {
+                interiorStart = 1;
+                interiorEnd = 0;
+            } else {
+                interiorStart = Math.max(interiorStart, Math.max(left[y - 1], left[y + 1]));
+                interiorEnd = Math.min(interiorEnd, Math.min(right[y - 1], right[y + 1]));
+            }
+            for (int x = left[y]; x <= right[y]; x++) {
+                if (x == interiorStart && interiorStart <= interiorEnd) {
+                    x = interiorEnd;
+                    continue;
+                }
+                if (count + 2 > packed.length) packed = Arrays.copyOf(packed, packed.length * 2);
+                packed[count++] = x;
+                packed[count++] = y;
+            }
+        }
+
+        // order by azimuth; the quantized azimuth is the high half of the sort key and the cell index the low half
+        int size = count / 2;
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            double azimuth = getAzimuth(observerX, observerY, packed[2 * i], packed[2 * i + 1]);
+            keys[i] = ((long) (azimuth / 360.0 * Integer.MAX_VALUE) << 32) | i;
+        }
+        Arrays.sort(keys);
+        cells = new int[2 * size];
+        azimuths = new double[size];
+        for (int i = 0; i < size; i++) {
+            int index = (int) keys[i];
+            cells[2 * i] = packed[2 * index];
+            cells[2 * i + 1] = packed[2 * index + 1];
+            azimuths[i] = getAzimuth(observerX, observerY, cells[2 * i], cells[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Binary search for the farthest column of a row, from the center towards the given end, that is within the radius
+     */
+    private static int lastWithinRadius(ObserverGeometry geometry, double radius, int y, int center, int end) {
+        int step = end >= center ? 1 : -1;
+        int inside = center;
+        int outside = end + step;
+        while (Math.abs(outside - inside) > 1) {
+            int middle = (inside + outside) / 2;
+            if (geometry.getDistance(middle, y) <= radius) inside = middle;
+            else outside = middle;
+        }
+        return inside;
+    }
+
+    /**
+     * @return azimuth in degrees [0, 360), clockwise from north
+     */
+    private static double getAzimuth(double observerX, double observerY, int x, int y) {
+        double azimuth = Math.toDegrees(Math.atan2(x - observerX, observerY - y));
+        return azimuth < 0 ? azimuth + 360.0 : azimuth;
+    }
+
+    /**
+     * @return number of cells in the ring
+     */
+    public int size() {
+        return azimuths.length;
+    }
+
+    public int getX(int index) {
+        return cells[2 * index];
+    }
+
+    public int getY(int index) {
+        return cells[2 * index + 1];
+    }
+
+    /**
+     * @return azimuth of the cell in degrees, clockwise from north
+     */
+    public double getAzimuth(int index) {
+        return azimuths[index];
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming PNG encoder. The image is produced in strips of {@link #STRIP_ROWS} rows, which are filtered and deflated
+ * in parallel as independent pieces of the single zlib stream of the image: every strip but the last ends with a sync
+ * flush on a byte boundary, so the raw deflate outputs can be concatenated as they are, and the Adler-32 checksum of
+ * the stream is combined from the checksums of the strips. The strips are written in order while later ones are still
+ * being compressed, and only a window of strips is held in memory, never the whole image.
+ */
+public class PngWriter {
+
+    /**
+     * 8-bit RGBA pixels (4 bytes per pixel)
+     */
+    public static final int COLOR_RGBA = 6;
+    /**
+     * 16-bit big-endian grayscale pixels (2 bytes per pixel)
+     */
+    public static final int COLOR_GRAY16 = 0;
+
+    // rows per strip, large enough for the deflate window to pay off
+    private static final int STRIP_ROWS = 64;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // zlib header: deflate with a 32K window, fastest compression (the filters do most of the work on viewshed images)
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01};
+    private static final int ADLER_BASE = 65521;
+
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bytesPerPixel;
+    private final int rowBytes;
+
+    /**
+     * @param width width of the image
+     * @param height height of the image
+     * @param colorType {@link #COLOR_RGBA} or {@link #COLOR_GRAY16}
+     */
+    public PngWriter(int width, int height, int colorType) {
+        if (colorType != COLOR_RGBA && colorType != COLOR_GRAY16) {
+            throw new IllegalArgumentException("Unsupported color type: " + colorType);
+        }
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bytesPerPixel = colorType == COLOR_RGBA ? 4 : 2;
+        this.rowBytes = width * bytesPerPixel;
+    }
+
+    /**
+     * Encode the image into a file
+     * @param file destination png file
+     * @param source rows of the image, {@link #getRowBytes()} bytes per row
+     */
+    public void write(Path file, RowSource source) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, source);
+        }
+    }
+
+    /**
+     * Encode the image into a stream
+     * @param stream destination of the png, which is flushed but not closed
+     * @param source rows of the image, {@link #getRowBytes()} bytes per row
+     */
+    public void write(OutputStream stream, RowSource source) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int strips = (height + STRIP_ROWS - 1) / STRIP_ROWS;
+        // strips in flight: enough to keep every thread busy while the oldest one is written
+        int window = 2 * pool.getParallelism() + 1;
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) (colorType == COLOR_RGBA ? 8 : 16);
+        header[9] = (byte) colorType;
+        writeChunk(out, crc, "IHDR", header, 0, header.length);
+
+        ArrayDeque<ForkJoinTask<Strip>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        long adler = 1;
+        for (int strip = 0; strip < strips; strip++) {
+            while (submitted < strips && submitted < strip + window) {
+                int index = submitted++;
+                pending.add(pool.submit(() -> encodeStrip(source, index, index == strips - 1)));
+            }
+            Strip encoded = pending.remove().join();
+            adler = combineAdler32(adler, encoded.adler & 0xFFFFFFFFL, encoded.rawLength);
+            writeChunk(out, crc, "IDAT", encoded.data, 0, encoded.length);
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        writeChunk(out, crc, "IDAT", trailer, 0, trailer.length);
+        writeChunk(out, crc, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    /**
+     * @return bytes per row that the row source has to fill
+     */
+    public int getRowBytes() {
+        return rowBytes;
+    }
+
+    /**
+     * Filter and deflate the rows of a strip
+     */
+    private Strip encodeStrip(RowSource source, int strip, boolean last) {
+        int start = strip * STRIP_ROWS;
+        int end = Math.min(height, start + STRIP_ROWS);
+        int stride = rowBytes + 1;
+        byte[] raw = new byte[(end - start) * stride];
+        // the filters of the first row refer to the last row of the previous strip
+        byte[] previous = new byte[rowBytes];
+        if (start > 0) source.getRow(start - 1, previous);
+        byte[] current = new byte[rowBytes];
+        for (int y = start; y < end; y++) {
+            source.getRow(y, current);
+            filterRow(current, previous, raw, (y - start) * stride);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, 0, raw.length);
+        byte[] data = new byte[raw.length / 4 + 64];
+        int length = 0;
+        if (strip == 0) {
+            System.arraycopy(ZLIB_HEADER, 0, data, 0, ZLIB_HEADER.length);
+            length = ZLIB_HEADER.length;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (length == data.length) data = Arrays.copyOf(data, 2 * data.length);
+                    length += deflater.deflate(data, length, data.length - length);
+                }
+            } else {
+                // a sync flush ends the strip on a byte boundary without ending the stream
+                while (true) {
+                    if (length == data.length) data = Arrays.copyOf(data, 2 * data.length);
+                    int space = data.length - length;
+                    int count = deflater.deflate(data, length, space, Deflater.SYNC_FLUSH);
+                    length += count;
+                    if (count < space) break;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Strip(data, length, (int) checksum.getValue(), raw.length);
+    }
+
+    /**
+     * Filter a row with the filter type (None, Sub, Up or Paeth) that gives the smallest sum of absolute values,
+     * the heuristic recommended by the PNG specification
+     * @param row samples of the row
+     * @param previous samples of the row above (zeros for the first row)
+     * @param raw destination of the filter type byte and the filtered row
+     * @param offset position of the filter type byte in the destination
+     */
+    private void filterRow(byte[] row, byte[] previous, byte[] raw, int offset) {
+        long none = 0;
+        long sub = 0;
+        long up = 0;
+        long paeth = 0;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+            // bytes are weighed as signed differences, unfiltered ones as well
+            none += Math.abs(row[i]);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            paeth += Math.abs((byte) (x - predictPaeth(a, b, c)));
+        }
+
+        int type = 0;
+        long best = none;
+        if (sub < best) { type = 1; best = sub; }
+        if (up < best) { type = 2; best = up; }
+        if (paeth < best) type = 4;
+        raw[offset] = (byte) type;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+            int value;
+            switch (type) {
+                case 1: value = x - a; break;
+                case 2: value = x - b; break;
+                case 4: value = x - predictPaeth(a, b, c); break;
+                default: value = x;
+            }
+            raw[offset + 1 + i] = (byte) value;
+        }
+    }
+
+    private static int predictPaeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two consecutive pieces of data (the adler32_combine of zlib)
+     * @param adler1 checksum of the first piece
+     * @param adler2 checksum of the second piece
+     * @param length2 length of the second piece
+     * @return checksum of the concatenation
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(DataOutputStream out, CRC32 crc, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        crc.reset();
+        crc.update(name);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Deflated strip with the checksum and length of its filtered rows
+     */
+    private static class Strip {
+
+        private final byte[] data;
+        private final int length;
+        private final int adler;
+        private final long rawLength;
+
+        Strip(byte[] data, int length, int adler, long rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Radial line of sight (R3): a ray is traced from the observer to every peripheral cell and every cell it crosses
+ * is evaluated, so cells near the observer are evaluated by many rays. This is the exact reference engine.
+ */
+public class R3Engine implements ViewshedEngine {
+
+    @Override
+    public String getName() {
+        return "R3";
+    }
+
+    @Override
+    public void calculate(SpatialUtils su, ObserverGeometry geometry, DemMosaic dem, double radius, double targetHeight, int mode,
+                          int parallelism, WorkerStatistics statistics) {
+        // ordered ring of peripheral cells, generated once and split between the threads by index
+        PerimeterRing ring = new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight);
+        new RayBatchTask(su, ring, 0, ring.size(), geometry, dem, targetHeight, mode,
+                RayBatchTask.getMinBatch(ring.size(), parallelism), statistics).invoke();
+    }
+}
@@ -1,31 +1,26 @@
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.io.*;
-import java.util.HashMap;
-import java.util.stream.IntStream;
+import java.nio.file.Paths;
 
 public class RasterUtils {
 
     private int size;
     private final int rangeStart = 0;
     private final int rangeEnd = 5000;
-    // Create the HashMap to store the mapping
-    private final HashMap<Integer, Integer> colorMap;
+    // Lookup table of the color of every height in [rangeStart, rangeEnd] (a plain array to avoid boxing in the hot loop)
+    private final int[] colorMap;
 
     public RasterUtils(int size) {
         this.size = size;
-        colorMap  = new HashMap<>();
-        // Populate the HashMap
+        colorMap = new int[rangeEnd - rangeStart + 1];
+        // Populate the lookup table
         for (int i = rangeStart; i <= rangeEnd; i++) {
-            colorMap.put(i, getInterpolatedColor(i));
+            colorMap[i - rangeStart] = getInterpolatedColor(i);
         }
     }
 
     public int getColor(int height) {
-        return colorMap.getOrDefault(height, 0x00000000);
+        if (height < rangeStart || height > rangeEnd) return 0x00000000;
+        return colorMap[height - rangeStart];
     }
 
     public int getRangeStart() {
@@ -103,122 +98,184 @@ public class RasterUtils {
         return (alpha << 24) | (red << 16) | (green << 8) | blue;
     }
 
-    public Raster concatenateRastersVertically(Raster raster1, Raster raster2) {
-        // Get dimensions
-        int width = raster1.getWidth();
-        int height1 = raster1.getHeight();
-        int height2 = raster2.getHeight();
-        // Create a new raster for the concatenated result
-        WritableRaster concatenatedRaster = WritableRaster.createBandedRaster(
-                java.awt.image.DataBuffer.TYPE_BYTE, width, height1 + height2, 1, null
-        );
 
-        // Copy data from the first raster
-        for (int y = 0; y < height1; y++) {
-            for (int x = 0; x < width; x++) {
-                int value = raster1.getSample(x, y, 0);
-                concatenatedRaster.setSample(x, y, 0, value);
-            }
-        }
+    public void resultToImage(ViewshedResult result, String name) {
+        resultToImage(result, result.getMinLon(), result.getMaxLon(), result.getMinLat(), result.getMaxLat(), name);
+    }
 
-        // Copy data from the second raster
-        for (int y = 0; y < height2; y++) {
-            for (int x = 0; x < width; x++) {
-                int value = raster2.getSample(x, y, 0);
-                concatenatedRaster.setSample(x, y + height1, 0, value); // Offset by height1
-            }
+    /**
+     * Export a result as a png and its pgw file. The rows are colorized and deflated in parallel strips straight from
+     * the result, without an intermediate full-size image.
+     */
+    public void resultToImage(ViewshedResult result, double minLon, double maxLon, double minLat, double maxLat, String name) {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        try {
+            new PngWriter(width, height, PngWriter.COLOR_RGBA).write(Paths.get(name + ".png"), getArgbRows(result));
+            writeWorldFile(width, height, minLon, maxLon, minLat, maxLat, name + ".pgw");
+            commitExport(event, name + ".png", width, height);
+            System.out.println("Viewshed saved as " + name + ".png");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-
-        return concatenatedRaster;
     }
 
-    public Raster concatenateRastersHorizontally(Raster raster1, Raster raster2) {
-        // Get dimensions
-        int width1 = raster1.getWidth();
-        int height1 = raster1.getHeight();
-        int width2 = raster2.getWidth();
-        int height2 = raster2.getHeight();
-
-        // The new raster's width is the sum of the two widths
-        int newWidth = width1 + width2;
-        // The height is the maximum height of the two rasters
-        int newHeight = Math.max(height1, height2);
-
-        // Create a new WritableRaster for the concatenated result
-        WritableRaster concatenatedRaster = WritableRaster.createBandedRaster(
-                java.awt.image.DataBuffer.TYPE_BYTE, newWidth, newHeight, 1, null
-        );
+    /**
+     * Encode a result as a png into a stream
+     * @param stream destination of the png, which is flushed but not closed
+     */
+    public void resultToPng(ViewshedResult result, OutputStream stream) throws IOException {
+        new PngWriter(result.getWidth(), result.getHeight(), PngWriter.COLOR_RGBA).write(stream, getArgbRows(result));
+    }
 
-        // Fill the new raster with pixel data from raster1
-        for (int y = 0; y < height1; y++) {
-            for (int x = 0; x < width1; x++) {
-                double value = raster1.getSampleDouble(x, y, 0);
-                concatenatedRaster.setSample(x, y, 0, value);
+    /**
+     * @return the rows of a result colorized as 8-bit RGBA
+     */
+    private RowSource getArgbRows(ViewshedResult result) {
+        int width = result.getWidth();
+        return (y, row) -> {
+            for (int x = 0; x < width; x++) {
+                int argb = result.getArgb(x, y, this); // colorize directly into the row
+                row[4 * x] = (byte) (argb >>> 16);
+                row[4 * x + 1] = (byte) (argb >>> 8);
+                row[4 * x + 2] = (byte) argb;
+                row[4 * x + 3] = (byte) (argb >>> 24);
             }
-        }
+        };
+    }
 
-        // Fill the new raster with pixel data from raster2
-        for (int y = 0; y < height2; y++) {
-            for (int x = 0; x < width2; x++) {
-                double value = raster2.getSampleDouble(x, y, 0);
-                concatenatedRaster.setSample(x + width1, y, 0, value); // Offset by width1
-            }
+    /**
+     * Export the values of a result as a deflate compressed, tiled GeoTIFF: 8-bit visibility flags (1 for visible cells)
+     * in modes 1 and 3, 16-bit signed required heights in modes 0 and 2 with {@link ViewshedResult#NO_HEIGHT} as no-data
+     */
+    public void resultToGeoTiff(ViewshedResult result, String name) {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        boolean heights = result.isHeightMode();
+        GeoTiffWriter writer = heights ? new GeoTiffWriter(width, height, 16, GeoTiffWriter.SAMPLE_FORMAT_INT)
+                : new GeoTiffWriter(width, height, 8, GeoTiffWriter.SAMPLE_FORMAT_UINT);
+        try {
+            writer.write(Paths.get(name + ".tif"), (y, row) -> {
+                for (int x = 0; x < width; x++) {
+                    if (heights) {
+                        int value = result.getRequiredHeight(x, y);
+                        row[2 * x] = (byte) value;
+                        row[2 * x + 1] = (byte) (value >>> 8);
+                    } else {
+                        row[x] = (byte) (result.isVisible(x, y) ? 1 : 0);
+                    }
+                }
+            }, result.getMinLon(), result.getMaxLon(), result.getMinLat(), result.getMaxLat(),
+                    heights ? String.valueOf(ViewshedResult.NO_HEIGHT) : null);
+            commitExport(event, name + ".tif", width, height);
+            System.out.println("Viewshed saved as " + name + ".tif");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return concatenatedRaster;
     }
 
-    public Raster convertArrayToRaster(int[][] array) {
-        int width = array.length;
-        int height = array[0].length;
-        // Create a WritableRaster with the desired dimensions
-        WritableRaster raster = WritableRaster.createBandedRaster(
-                java.awt.image.DataBuffer.TYPE_INT,width, height, 4, null
-        );
-        // Populate the raster with data from the 2D array
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                raster.setSample(x, y, 0, array[x][y]);
-            }
+    /**
+     * Export the visible areas of a result as polygons, see {@link ViewshedVectorizer}
+     * @param format {@link ViewshedVectorizer#FORMAT_WKT}, {@link ViewshedVectorizer#FORMAT_GEOJSON} or {@link ViewshedVectorizer#FORMAT_WKB}
+     * @param tolerance simplification tolerance in cells, or 0 for the exact cell boundaries
+     */
+    public void resultToVector(ViewshedResult result, String name, String format, double tolerance) {
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        String file = name + "." + format;
+        try {
+            int polygons = new ViewshedVectorizer(result, ViewshedResult.NO_HEIGHT - 1, tolerance).write(Paths.get(file), format);
+            commitExport(event, file, result.getWidth(), result.getHeight());
+            System.out.println("Viewshed saved as " + file + " (" + polygons + " polygons)");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return raster;
     }
 
-    public void rasterToImage(Raster raster, String name) {
-        int width = raster.getWidth();
-        int height = raster.getHeight();
-
-        // Create new BufferedImage for visualization
-        BufferedImage concatenatedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        concatenatedImage.setData(raster);
-        // Save the concatenated image
+    /**
+     * Export a cumulative viewshed as a 16-bit grayscale png (sums rounded and clamped to 0-65535) and its pgw file
+     */
+    public void cumulativeToImage(CumulativeViewshed cumulative, String name) {
+        int width = cumulative.getWidth();
+        int height = cumulative.getHeight();
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        PngWriter writer = new PngWriter(width, height, PngWriter.COLOR_GRAY16);
         try {
-            ImageIO.write(concatenatedImage, "png", new File( "E:\\" + name + ".png"));
-            System.out.println("Concatenated raster saved as " + name + ".png");
+            writer.write(Paths.get(name + ".png"), (y, row) -> {
+                for (int x = 0; x < width; x++) {
+                    int value = Math.min(65535, Math.round(cumulative.getSum(x, y)));
+                    row[2 * x] = (byte) (value >>> 8);
+                    row[2 * x + 1] = (byte) value;
+                }
+            });
+            writeWorldFile(width, height, cumulative.getMinLon(), cumulative.getMaxLon(), cumulative.getMinLat(), cumulative.getMaxLat(), name + ".pgw");
+            commitExport(event, name + ".png", width, height);
+            System.out.println("Cumulative viewshed saved as " + name + ".png");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void arrayToImage(int[][] argbArray, int width, int height, double minLon, double maxLon, double minLat, double maxLat, String name) {
-        // Create a BufferedImage with a writable INT_ARGB data buffer
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        WritableRaster raster = image.getRaster();
-        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+    /**
+     * Export the unrounded sums of a cumulative viewshed as a deflate compressed, tiled 32-bit float GeoTIFF
+     */
+    public void cumulativeToGeoTiff(CumulativeViewshed cumulative, String name) {
+        int width = cumulative.getWidth();
+        int height = cumulative.getHeight();
+        ExportEvent event = new ExportEvent();
+        event.begin();
+        GeoTiffWriter writer = new GeoTiffWriter(width, height, 32, GeoTiffWriter.SAMPLE_FORMAT_FLOAT);
+        try {
+            writer.write(Paths.get(name + ".tif"), (y, row) -> {
+                for (int x = 0; x < width; x++) {
+                    int bits = Float.floatToRawIntBits(cumulative.getSum(x, y));
+                    row[4 * x] = (byte) bits;
+                    row[4 * x + 1] = (byte) (bits >>> 8);
+                    row[4 * x + 2] = (byte) (bits >>> 16);
+                    row[4 * x + 3] = (byte) (bits >>> 24);
+                }
+            }, cumulative.getMinLon(), cumulative.getMaxLon(), cumulative.getMinLat(), cumulative.getMaxLat(), null);
+            commitExport(event, name + ".tif", width, height);
+            System.out.println("Cumulative viewshed saved as " + name + ".tif");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        int[] pixels = buffer.getData(); // Direct reference to the internal pixel array
+    private static void commitExport(ExportEvent event, String file, int width, int height) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.width = width;
+            event.height = height;
+            event.bytes = new File(file).length();
+            event.commit();
+        }
+    }
 
-        // Parallel processing using IntStream.range().parallel()
-        IntStream.range(0, width * height).parallel().forEach(i -> {
-            int x = i % width;
-            int y = i / width;
-            pixels[i] = argbArray[x][y]; // Directly modify pixel buffer
-        });
+    /**
+     * Write the world file that georeferences an image
+     */
+    public void writeWorldFile(int width, int height, double minLon, double maxLon, double minLat, double maxLat, String fileName) throws IOException {
+        try (FileWriter writer = new FileWriter(fileName)) {
+            writer.write(getWorldFile(width, height, minLon, maxLon, minLat, maxLat));
+        }
+    }
 
+    /**
+     * @return content of the world file that georeferences an image
+     */
+    public String getWorldFile(int width, int height, double minLon, double maxLon, double minLat, double maxLat) {
         // Calculate pixel size
         double xPixelSize = (maxLon - minLon) / width;
         double yPixelSize = (maxLat - minLat) / height; // Negative for north-up
         // World file content
-        String worldFileContent = String.format(
+        return String.format(
                 "%.10f\n" + // x pixel size
                         "0.0\n" +   // rotation (y-axis)
                         "0.0\n" +   // rotation (x-axis)
@@ -230,19 +287,6 @@ public class RasterUtils {
                 minLon,
                 maxLat
         );
-        try {
-            ImageIO.write(image, "png", new File( name + ".png"));
-            // Write to the world file
-            File worldFile = new File(name + ".pgw");
-            FileWriter writer = new FileWriter(worldFile);
-            writer.write(worldFileContent);
-            writer.close();
-            System.out.println("Viewshed saved as " + name + ".png");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
     }
 
 }
-
-
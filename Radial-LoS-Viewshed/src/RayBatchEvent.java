@@ -0,0 +1,26 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a batch of rays cast by one worker thread
+ */
+@Name("viewshed.RayBatch")
+@Label("Ray Batch")
+@Category("Viewshed")
+@Description("A batch of rays cast by one worker thread")
+@StackTrace(false)
+public class RayBatchEvent extends Event {
+
+    @Label("Rays")
+    int rays;
+
+    @Label("Cells Traversed")
+    long cells;
+
+    @Label("Cells Written")
+    long writes;
+}
@@ -0,0 +1,179 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that casts the rays towards a range of the perimeter ring. The range keeps being split in
+ * halves, which idle threads can steal, as long as it is larger than the minimum batch and the current worker
+ * does not already have surplus queued tasks. Costly sectors (mountains, tiles to load) therefore end up split
+ * finely while cheap ones run as large batches.
+ * <p>
+ * The rays are either traced towards the perimeter ring of the observer or replayed from a {@link RayTemplate}.
+ */
+public class RayBatchTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // splitting stops once this many more tasks are queued than there are idle threads to steal them
+    private static final int MAX_SURPLUS = 3;
+
+    private final SpatialUtils su;
+    private final PerimeterRing ring;
+    private final ObserverGeometry geometry;
+    private final RayTemplate template;
+    private final int observerX;
+    private final int observerY;
+    private final double observerHeight;
+    private final DemMosaic dem;
+    private final double targetHeight;
+    private final int mode;
+    private final int minBatch;
+    private final WorkerStatistics statistics;
+    private final int start;
+    private final int end;
+    // forked sibling tasks that this task must join
+    private RayBatchTask next;
+
+    /**
+     * @param su spatial utils holding the result array
+     * @param ring peripheral cells of the observer
+     * @param start index of the first peripheral cell (inclusive)
+     * @param end index of the last peripheral cell (exclusive)
+     * @param geometry lookup tables of the observer
+     * @param dem elevation mosaic
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param minBatch smallest number of rays worth a task of its own
+     * @param statistics per-thread statistics, may be null
+     */
+    public RayBatchTask(SpatialUtils su, PerimeterRing ring, int start, int end, ObserverGeometry geometry, DemMosaic dem,
+                        double targetHeight, int mode, int minBatch, WorkerStatistics statistics) {
+        this.su = su;
+        this.ring = ring;
+        this.start = start;
+        this.end = end;
+        this.geometry = geometry;
+        this.template = null;
+        this.observerX = 0;
+        this.observerY = 0;
+        this.observerHeight = geometry.getObserver().getHeight();
+        this.dem = dem;
+        this.targetHeight = targetHeight;
+        this.mode = mode;
+        this.minBatch = minBatch;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param su spatial utils holding the result array
+     * @param template rays of the observer
+     * @param start index of the first ray of the template (inclusive)
+     * @param end index of the last ray of the template (exclusive)
+     * @param observer the observer
+     * @param dem elevation mosaic
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param minBatch smallest number of rays worth a task of its own
+     * @param statistics per-thread statistics, may be null
+     */
+    public RayBatchTask(SpatialUtils su, RayTemplate template, int start, int end, PointOfInterest observer, DemMosaic dem,
+                        double targetHeight, int mode, int minBatch, WorkerStatistics statistics) {
+        double[] xy = su.getXY(observer.getLongitude(), observer.getLatitude());
+        this.su = su;
+        this.ring = null;
+        this.start = start;
+        this.end = end;
+        this.geometry = null;
+        this.template = template;
+        this.observerX = (int) xy[0];
+        this.observerY = (int) xy[1];
+        this.observerHeight = observer.getHeight();
+        this.dem = dem;
+        this.targetHeight = targetHeight;
+        this.mode = mode;
+        this.minBatch = minBatch;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Task for a part of the range of another task
+     */
+    private RayBatchTask(RayBatchTask task, int start, int end) {
+        this.su = task.su;
+        this.ring = task.ring;
+        this.start = start;
+        this.end = end;
+        this.geometry = task.geometry;
+        this.template = task.template;
+        this.observerX = task.observerX;
+        this.observerY = task.observerY;
+        this.observerHeight = task.observerHeight;
+        this.dem = task.dem;
+        this.targetHeight = task.targetHeight;
+        this.mode = task.mode;
+        this.minBatch = task.minBatch;
+        this.statistics = task.statistics;
+    }
+
+    /**
+     * Pick the minimum batch so that there are several batches per thread but a batch still amortizes its task
+     * @param rays number of rays
+     * @param parallelism number of threads
+     * @return minimum number of rays per batch
+     */
+    public static int getMinBatch(int rays, int parallelism) {
+        return Math.max(4, Math.min(256, rays / (parallelism * 16)));
+    }
+
+    @Override
+    protected void compute() {
+        int low = start;
+        int high = end;
+        RayBatchTask forked = null;
+        while (high - low > minBatch && getSurplusQueuedTaskCount() <= MAX_SURPLUS) {
+            int middle = (low + high) >>> 1;
+            RayBatchTask right = new RayBatchTask(this, middle, high);
+            right.next = forked;
+            forked = right;
+            right.fork();
+            high = middle;
+        }
+        castRays(low, high);
+        while (forked != null) {
+            // run the forked task here if nobody has stolen it yet
+            if (forked.tryUnfork()) forked.compute();
+            else forked.join();
+            forked = forked.next;
+        }
+    }
+
+    private void castRays(int low, int high) {
+        RayBatchEvent event = new RayBatchEvent();
+        event.begin();
+        long batchStart = System.nanoTime();
+        long cells = 0;
+        long writes = 0;
+        if (template != null) {
+            for (int i = low; i < high; i++) {
+                long counts = su.replayRayTemplate(template, i, observerX, observerY, observerHeight, dem, targetHeight, mode);
+                cells += SpatialUtils.getTraversedCells(counts);
+                writes += SpatialUtils.getWrittenCells(counts);
+            }
+        } else {
+            for (int i = low; i < high; i++) {
+                //calculate visibility in observer's line of sight
+                long counts = su.getVoxelTraversalLine(geometry, ring.getX(i), ring.getY(i), dem, targetHeight, mode);
+                cells += SpatialUtils.getTraversedCells(counts);
+                writes += SpatialUtils.getWrittenCells(counts);
+            }
+        }
+        if (statistics != null) {
+            statistics.record(high - low, cells, writes, System.nanoTime() - batchStart);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.rays = high - low;
+            event.cells = cells;
+            event.writes = writes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/**
+ * The rays of a viewshed, precomputed for any observer in a latitude band at a given sub-pixel offset and radius.
+ * Within a band the cells that the traversal visits, relative to the cell of the observer, are the same for every
+ * observer, and so are their distances and curvature drops. A template stores them as packed (dx, dy) offsets with
+ * float distances (8 bytes per cell), so casting a ray from a template is pure array indexing plus a polynomial for
+ * the curvature drop: no DDA stepping and no geodesic math.
+ * <p>
+ * The template is exact for an observer at the center of the band and at the center of the sub-pixel quantum.
+ * Other observers are moved by up to half a quantum (1/8 pixel) and their distances are those of the band center,
+ * which changes the east-west distances by up to {@link #BAND_DEGREES}/2 * tan(latitude) (relative).
+ */
+public class RayTemplate {
+
+    /**
+     * Height of a latitude band in degrees
+     */
+    public static final double BAND_DEGREES = 0.05;
+    /**
+     * Number of sub-pixel offsets per axis
+     */
+    public static final int OFFSET_STEPS = 4;
+
+    private static final int TILE_SIZE = 3601;
+
+    private final double radius;
+    private final double earthRadius;
+    private final int band;
+    private final int offsetX;
+    private final int offsetY;
+    // index of the first cell of every ray, plus the end of the last ray
+    private final int[] rayStarts;
+    // packed dx (high half) and dy (low half) relative to the cell of the observer
+    private final int[] cells;
+    private final float[] distances;
+    // whether the walk of a ray ends at its peripheral cell (mode 3)
+    private final boolean[] reachesTarget;
+
+    /**
+     * Trace all rays of the template observer of a band
+     * @param band index of the latitude band, see {@link #getBand}
+     * @param offsetX quantized sub-pixel column of the observer, see {@link #getOffset}
+     * @param offsetY quantized sub-pixel row of the observer
+     * @param radius radius in meters
+     */
+    public RayTemplate(int band, int offsetX, int offsetY, double radius) {
+        this.radius = radius;
+        this.band = band;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+
+        // place the template observer in a grid of the DEM pixel size, at the center of the band and of the offset quantum
+        SpatialUtils su = new SpatialUtils(new RasterUtils(TILE_SIZE));
+        this.earthRadius = su.R;
+        double latitude = (band + 0.5) * BAND_DEGREES;
+        // whole tiles around the radius on every side, so that no ray is cut off at the edge of the grid
+        double[] north = su.calculateFarthestPoint(latitude, 0.5, 0.0, radius);
+        double[] east = su.calculateFarthestPoint(latitude, 0.5, 90.0, radius);
+        double[] south = su.calculateFarthestPoint(latitude, 0.5, 180.0, radius);
+        double[] west = su.calculateFarthestPoint(latitude, 0.5, 270.0, radius);
+        GridWindow window = GridWindow.forTiles((int) Math.floor(west[1]), (int) Math.floor(east[1]),
+                (int) Math.floor(south[0]), (int) Math.floor(north[0]), TILE_SIZE).crop(west[1], east[1], south[0], north[0]);
+        window.applyTo(su);
+        double[] xy = su.getXY(0.5, latitude);
+        int observerX = (int) xy[0];
+        int observerY = (int) xy[1];
+        double[] lonLat = su.getLonLat(observerX + (offsetX + 0.5) / OFFSET_STEPS, observerY + (offsetY + 0.5) / OFFSET_STEPS);
+        ObserverGeometry geometry = new ObserverGeometry(su, new PointOfInterest(lonLat[0], lonLat[1], 0));
+        PerimeterRing ring = new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight);
+
+        int rays = ring.size();
+        rayStarts = new int[rays + 1];
+        reachesTarget = new boolean[rays];
+        int[] packed = new int[rays * 64];
+        float[] distance = new float[packed.length];
+        int count = 0;
+        int minDx = 0;
+        int maxDx = 0;
+        for (int ray = 0; ray < rays; ray++) {
+            rayStarts[ray] = count;
+            long[] walk = su.getTraversalCells(geometry, ring.getX(ray), ring.getY(ray));
+            if (count + walk.length > packed.length) {
+                int capacity = Math.max(2 * packed.length, count + walk.length);
+                packed = Arrays.copyOf(packed, capacity);
+                distance = Arrays.copyOf(distance, capacity);
+            }
+            for (long cell : walk) {
+                int x = SpatialUtils.getCellX(cell);
+                int y = SpatialUtils.getCellY(cell);
+                minDx = Math.min(minDx, x - observerX);
+                maxDx = Math.max(maxDx, x - observerX);
+                packed[count] = pack(x - observerX, y - observerY);
+                distance[count] = (float) geometry.getDistance(x, y);
+                count++;
+            }
+            long last = walk.length > 0 ? walk[walk.length - 1] : -1;
+            reachesTarget[ray] = last == SpatialUtils.packCell(ring.getX(ray), ring.getY(ray));
+        }
+        rayStarts[rays] = count;
+        // the rays reach as far west as east (up to the sub-pixel offset), unless the grid cut them off
+        if (Math.abs(maxDx + minDx) > 1) {
+            throw new IllegalStateException("Rays of the template of band " + band + " span dx " + minDx + " to " + maxDx
+                    + " at radius " + radius + " m");
+        }
+        cells = Arrays.copyOf(packed, count);
+        distances = Arrays.copyOf(distance, count);
+    }
+
+    private static int pack(int dx, int dy) {
+        return (dx << 16) | (dy & 0xFFFF);
+    }
+
+    /**
+     * @return index of the latitude band of a latitude
+     */
+    public static int getBand(double latitude) {
+        return (int) Math.floor(latitude / BAND_DEGREES);
+    }
+
+    /**
+     * @param pixel fractional column or row of the observer in the DEM grid
+     * @return quantized sub-pixel offset between 0 and {@link #OFFSET_STEPS} - 1
+     */
+    public static int getOffset(double pixel) {
+        return Math.min(OFFSET_STEPS - 1, (int) ((pixel - Math.floor(pixel)) * OFFSET_STEPS));
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public int getBand() {
+        return band;
+    }
+
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * @return number of rays
+     */
+    public int size() {
+        return rayStarts.length - 1;
+    }
+
+    /**
+     * @return index of the first cell of a ray
+     */
+    public int getRayStart(int ray) {
+        return rayStarts[ray];
+    }
+
+    /**
+     * @return index after the last cell of a ray
+     */
+    public int getRayEnd(int ray) {
+        return rayStarts[ray + 1];
+    }
+
+    /**
+     * @return column of a cell relative to the cell of the observer
+     */
+    public int getDx(int cell) {
+        return cells[cell] >> 16;
+    }
+
+    /**
+     * @return row of a cell relative to the cell of the observer
+     */
+    public int getDy(int cell) {
+        return (short) cells[cell];
+    }
+
+    /**
+     * @return distance of a cell from the observer in meters
+     */
+    public double getDistance(int cell) {
+        return distances[cell];
+    }
+
+    /**
+     * Get the curvature drop of a cell from the series d^2/2R * (1 + d^2/4R^2), which agrees with
+     * {@link ObserverGeometry#getCurvatureDrop} to better than a millimeter up to 200 km
+     * @return curvature drop of a cell in meters
+     */
+    public double getCurvature(int cell) {
+        double d = distances[cell];
+        double q = d * d / (earthRadius * earthRadius);
+        return d * d / (2 * earthRadius) * (1 + q / 4);
+    }
+
+    /**
+     * @return whether the last cell of a ray is its peripheral cell
+     */
+    public boolean reachesTarget(int ray) {
+        return reachesTarget[ray];
+    }
+
+    /**
+     * @return size of the arrays in bytes
+     */
+    public long getSizeInBytes() {
+        return 4L * rayStarts.length + 8L * cells.length + reachesTarget.length;
+    }
+}
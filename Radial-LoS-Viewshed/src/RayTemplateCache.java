@@ -0,0 +1,167 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of {@link RayTemplate}s keyed by latitude band, sub-pixel offset and radius. Templates are
+ * evicted in least-recently-used order once their size exceeds the memory budget, and concurrent requests for
+ * the same template wait for a single build.
+ * The budget defaults to the system property viewshed.rayTemplates.maxBytes (512 MiB if not set).
+ */
+public class RayTemplateCache {
+
+    private static final RayTemplateCache INSTANCE = new RayTemplateCache(Long.getLong("viewshed.rayTemplates.maxBytes", 1L << 29));
+
+    private final LinkedHashMap<String, CompletableFuture<RayTemplate>> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long currentBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RayTemplateCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static RayTemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the template of an observer, tracing it if it is not cached
+     * @param latitude latitude of the observer
+     * @param pixelX fractional column of the observer in the DEM grid
+     * @param pixelY fractional row of the observer in the DEM grid
+     * @param radius radius in meters
+     * @return the template
+     */
+    public RayTemplate getTemplate(double latitude, double pixelX, double pixelY, double radius) {
+        int band = RayTemplate.getBand(latitude);
+        int offsetX = RayTemplate.getOffset(pixelX);
+        int offsetY = RayTemplate.getOffset(pixelY);
+        String key = getKey(band, offsetX, offsetY, radius);
+        CompletableFuture<RayTemplate> future;
+        boolean owner = false;
+        synchronized (templates) {
+            future = templates.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                templates.put(key, future);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            hits.incrementAndGet();
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        misses.incrementAndGet();
+        RayTemplate template;
+        try {
+            template = new RayTemplate(band, offsetX, offsetY, radius);
+        } catch (RuntimeException e) {
+            synchronized (templates) {
+                templates.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+        future.complete(template);
+        synchronized (templates) {
+            currentBytes += template.getSizeInBytes();
+            evict(key);
+        }
+        return template;
+    }
+
+    /**
+     * Key of the template of an observer, e.g. to group observers that share a template
+     * @param latitude latitude of the observer
+     * @param pixelX fractional column of the observer in the DEM grid
+     * @param pixelY fractional row of the observer in the DEM grid
+     * @param radius radius in meters
+     * @return the key
+     */
+    public static String getKey(double latitude, double pixelX, double pixelY, double radius) {
+        return getKey(RayTemplate.getBand(latitude), RayTemplate.getOffset(pixelX), RayTemplate.getOffset(pixelY), radius);
+    }
+
+    private static String getKey(int band, int offsetX, int offsetY, double radius) {
+        return band + ":" + offsetX + ":" + offsetY + ":" + radius;
+    }
+
+    /**
+     * Evict the least recently used templates until the cache fits in its budget. Must hold the lock.
+     * @param keep key of the template that has just been inserted
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, CompletableFuture<RayTemplate>>> iterator = templates.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, CompletableFuture<RayTemplate>> entry = iterator.next();
+            // templates that are still being traced have no size yet
+            if (entry.getKey().equals(keep) || !entry.getValue().isDone()) continue;
+            currentBytes -= entry.getValue().join().getSizeInBytes();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        synchronized (templates) {
+            this.maxBytes = maxBytes;
+            evict(null);
+        }
+    }
+
+    public long getMaxBytes() {
+        synchronized (templates) {
+            return maxBytes;
+        }
+    }
+
+    public long getCurrentBytes() {
+        synchronized (templates) {
+            return currentBytes;
+        }
+    }
+
+    /**
+     * Remove all cached templates
+     */
+    public void clear() {
+        synchronized (templates) {
+            templates.values().removeIf(CompletableFuture::isDone);
+            currentBytes = 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RayTemplateCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", bytes=" + getCurrentBytes() +
+                ", maxBytes=" + getMaxBytes() +
+                '}';
+    }
+}
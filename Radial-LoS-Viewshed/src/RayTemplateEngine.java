@@ -0,0 +1,21 @@
+/**
+ * R3 with the rays replayed from the cached {@link RayTemplate} of the latitude band, sub-pixel offset and radius
+ * of the observer instead of being traced
+ */
+public class RayTemplateEngine implements ViewshedEngine {
+
+    @Override
+    public String getName() {
+        return "R3 (templates)";
+    }
+
+    @Override
+    public void calculate(SpatialUtils su, ObserverGeometry geometry, DemMosaic dem, double radius, double targetHeight, int mode,
+                          int parallelism, WorkerStatistics statistics) {
+        PointOfInterest observer = geometry.getObserver();
+        RayTemplate template = RayTemplateCache.getInstance().getTemplate(observer.getLatitude(), geometry.getObserverX(),
+                geometry.getObserverY(), radius);
+        new RayBatchTask(su, template, 0, template.size(), observer, dem, targetHeight, mode,
+                RayBatchTask.getMinBatch(template.size(), parallelism), statistics).invoke();
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Supplies the encoded samples of the rows of an image to a streaming writer ({@link PngWriter}, {@link GeoTiffWriter}).
+ * Rows are requested from several threads at once and in no particular order.
+ */
+public interface RowSource {
+
+    /**
+     * Encode a row of the image
+     * @param y row of the image
+     * @param row destination of the samples of the row, in the byte layout of the writer
+     */
+    void getRow(int y, byte[] row);
+}
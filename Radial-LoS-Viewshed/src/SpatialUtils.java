@@ -1,18 +1,18 @@
-import java.awt.image.Raster;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashSet;
 
 public class SpatialUtils {
 
     public int R = 6371000;
+    // tangent of the initial maximum angle (-1.6 rad) of a ray, as used for the visibility height before any cell is seen
+    static final double INITIAL_VISIBILITY_SLOPE = Math.tan(-1.6);
     public double distanceDegreeLat = 111320; // distance of 1 degree of latitude
     private double minLon;
     private double minLat;
     private double maxLon;
     private double maxLat;
-    private int[][] finalArray;
+    private ViewshedResult result;
     private final RasterUtils rasterUtils;
     public int gridWidth;
     public int gridHeight;
@@ -36,15 +36,20 @@ public class SpatialUtils {
         this.maxLat = maxLat;
     }
 
-    public void initializeArray() {
-        finalArray = new int[gridWidth][gridHeight];
-        for (int i = 0; i < gridHeight; i++) {
-            Arrays.fill(finalArray[i], 0x00000000); // fully transparent
-        }
+    public void initializeResult(int mode) {
+        result = new ViewshedResult(gridWidth, gridHeight, mode, minLon, maxLon, minLat, maxLat);
     }
 
-    public int[][] getFinalArray() {
-        return finalArray;
+    public ViewshedResult getResult() {
+        return result;
+    }
+
+    /**
+     * Let the rays write into an existing result of the same grid, e.g. to merge the viewsheds of several observers
+     * into one raster
+     */
+    public void setResult(ViewshedResult result) {
+        this.result = result;
     }
 
     /**
@@ -53,10 +58,21 @@ public class SpatialUtils {
      * @param cell
      * @return angle in degrees
      */
-    public double getAngleOfElevation(PointOfInterest observer, Cell cell, Double distance) {
+    public double getAngleOfElevation(PointOfInterest observer, Cell cell, double distance) {
+        return getAngleOfElevation(observer.getHeight(), cell.getHeight(), distance);
+    }
+
+    /**
+     * Get the angle between the observer and a cell of the given height
+     * @param observerHeight height of the observer
+     * @param cellHeight height of the cell
+     * @param distance distance of cell from observer
+     * @return angle in degrees
+     */
+    public double getAngleOfElevation(double observerHeight, double cellHeight, double distance) {
         double hc = getAdjustedHeight(distance);
-        double zi = cell.getHeight()-hc;
-        double deltaZ = zi-observer.getHeight();
+        double zi = cellHeight-hc;
+        double deltaZ = zi-observerHeight;
         return Math.atan(deltaZ/distance);
     }
 
@@ -128,19 +144,8 @@ public class SpatialUtils {
         return new double[]{minLon+X*stepX,maxLat-Y*stepY};
     }
 
-    public double getHeightFromCoordinates(Raster raster, double lon, double lat) {
-        int latInt = getIntegerPart(lat);
-        int lonInt = getIntegerPart(lon);
-        double[] xy = getXY(lon,lat);
-        return raster.getSampleDouble(lonInt, latInt, 0); // 0 for the first (and only) band in grayscale
-    }
-
-    public double getHeightFromRaster(Raster raster, double x, double y) {
-        try {
-            return raster.getSampleDouble((int) x, (int) y, 0);
-        } catch (Exception e) {
-            return 0.0;
-        }
+    public double getHeightFromRaster(DemMosaic dem, double x, double y) {
+        return dem.getElevation((int) x, (int) y);
     }
 
     /**
@@ -151,7 +156,18 @@ public class SpatialUtils {
      * @return
      */
     public double getVisibilityHeight(PointOfInterest observer, double distance, double maxAngle) {
-        double z = observer.getHeight() + distance*Math.tan(maxAngle);
+        return getVisibilityHeight(observer.getHeight(), distance, maxAngle);
+    }
+
+    /**
+     * Calculate the height required to stay visible
+     * @param observerHeight height of the observer
+     * @param distance distance of cell from observer
+     * @param maxAngle maximum angle encountered so far
+     * @return
+     */
+    public double getVisibilityHeight(double observerHeight, double distance, double maxAngle) {
+        double z = observerHeight + distance*Math.tan(maxAngle);
         // adjust height to include earth's curvature
         return z + getAdjustedHeight(distance);
     }
@@ -201,25 +217,39 @@ public class SpatialUtils {
     }
 
     /**
-     *
-     * @param observer
-     * @param target
-     * @param image
+     * Walk the cells from the observer to the target and record their visibility.
+     * This is the hot loop of the algorithm, so it works on primitives only and allocates nothing per cell.
+     * Distances and curvature come from the observer's lookup tables and angles are compared through
+     * their tangents (slopes), so there are no trigonometric calls per cell either.
+     * <p>
+     * In the visibility modes (1 and 3) the ray consults the {@link ElevationPyramid} of the DEM whenever it enters
+     * a new block: blocks whose maximum elevation cannot rise above the current horizon are crossed without reading
+     * their cells (they stay occluded), and the ray stops once nothing up to its target can rise above the horizon.
+     * Both only skip cells that could not have been visible, so the result is unchanged.
+     * @param geometry lookup tables of the observer
+     * @param targetX column of the peripheral cell
+     * @param targetY row of the peripheral cell
+     * @param dem elevation mosaic
      * @param mode type of generated viewshed
-     * @return
+     * @return cells traversed and written, see {@link #getTraversedCells} and {@link #getWrittenCells}
      */
-    public void getVoxelTraversalLine(PointOfInterest observer, RasterCell target, Raster image, double elevationTarget, int mode) {
-        double[] xy = getXY(observer.getLongitude(),observer.getLatitude());
+    public long getVoxelTraversalLine(ObserverGeometry geometry, int targetX, int targetY, DemMosaic dem, double elevationTarget, int mode) {
+        double observerHeight = geometry.getObserver().getHeight();
+        int traversed = 0;
+        int written = 0;
 
-        double x1 = xy[0];
-        double y1 = xy[1];
-        double x2 = target.getX();
-        double y2 = target.getY();
+        double x1 = geometry.getObserverX();
+        double y1 = geometry.getObserverY();
+        double x2 = targetX;
+        double y2 = targetY;
 
         double x = x1;
         double y = y1;
 
-        double thetaMax = -1.6;
+        // tangent of the maximum angle so far, starting below any possible angle
+        double slopeMax = Double.NEGATIVE_INFINITY;
+        // tan(-1.6) is not below every slope (-1.6 < -PI/2), so the visibility height uses its own starting value
+        double visibilitySlope = INITIAL_VISIBILITY_SLOPE;
 
         double deltaX = x2-x1;
         double deltaY = y2-y1;
@@ -243,54 +273,270 @@ public class SpatialUtils {
         //How far to move along the ray to move vertically 1 grid cell.
         double tDeltaY = 1.0 / Math.sin(angle);
 
+        // block of the elevation pyramid the ray is in, and whether it lies below the horizon
+        boolean prune = mode == 1 || mode == 3;
+        int blockX0 = 0;
+        int blockX1 = 0;
+        int blockY0 = 0;
+        int blockY1 = 0;
+        boolean occluded = false;
+        // consecutive blocks that rose above the horizon
+        int risingBlocks = 0;
+
         //Travel one grid cell at a time.
         double manhattanDistance = Math.abs(Math.floor(x2) - Math.floor(x1)) + Math.abs(Math.floor(y2) - Math.floor(y1));
         for (double t = 0; t <= manhattanDistance; ++t) {
 
-            double[] lonLat = getLonLat((int) x, (int) y);
-            Cell intermediateCell = new Cell(lonLat[0],lonLat[1],getHeightFromRaster(image,x,y));
-            double distance = getHaversineDistance(observer.getLatitude(),observer.getLongitude(),intermediateCell.getLatitude(),intermediateCell.getLongitude());
-            double theta = getAngleOfElevation(observer,intermediateCell,distance);
+            int cellX = (int) x;
+            int cellY = (int) y;
+            // the ray cannot re-enter the grid once it has left it
+            if (cellX < 0 || cellY < 0 || cellX >= gridWidth || cellY >= gridHeight) break;
+
+            if (prune && (cellX < blockX0 || cellX >= blockX1 || cellY < blockY0 || cellY >= blockY1)) {
+                // find the largest block around the cell that lies below the horizon
+                occluded = false;
+                int occludedLevel = 0;
+                for (int level = ElevationPyramid.MIN_LEVEL; level <= ElevationPyramid.MAX_LEVEL; level++) {
+                    int x0 = Math.max(0, dem.getBlockStartX(level, cellX));
+                    int xEnd = Math.min(gridWidth, dem.getBlockEndX(level, cellX));
+                    int y0 = Math.max(0, dem.getBlockStartY(level, cellY));
+                    int yEnd = Math.min(gridHeight, dem.getBlockEndY(level, cellY));
+                    if (!isBelowHorizon(geometry, dem.getBlockMax(level, cellX, cellY), x0, y0, xEnd - 1, yEnd - 1, slopeMax)) {
+                        if (!occluded) {
+                            // the cells are walked one by one, up to the next test; the more blocks in a row rise
+                            // above the horizon (e.g. on a visible slope), the larger the region before that test
+                            int walked = Math.min(ElevationPyramid.MAX_LEVEL, level + risingBlocks++);
+                            blockX0 = Math.max(0, dem.getBlockStartX(walked, cellX));
+                            blockX1 = Math.min(gridWidth, dem.getBlockEndX(walked, cellX));
+                            blockY0 = Math.max(0, dem.getBlockStartY(walked, cellY));
+                            blockY1 = Math.min(gridHeight, dem.getBlockEndY(walked, cellY));
+                        }
+                        break;
+                    }
+                    blockX0 = x0;
+                    blockX1 = xEnd;
+                    blockY0 = y0;
+                    blockY1 = yEnd;
+                    occluded = true;
+                    occludedLevel = level;
+                }
+                if (occluded) risingBlocks = 0;
+                // even the coarsest block is below the horizon: check whether anything left up to the target can rise above it
+                if (occludedLevel == ElevationPyramid.MAX_LEVEL) {
+                    int restX0 = Math.min(cellX, targetX);
+                    int restY0 = Math.min(cellY, targetY);
+                    int restX1 = Math.max(cellX, targetX);
+                    int restY1 = Math.max(cellY, targetY);
+                    if (isBelowHorizon(geometry, dem.getMaxElevation(restX0, restY0, restX1, restY1), restX0, restY0, restX1, restY1, slopeMax)) break;
+                }
+            }
+
+            if (!occluded) {
+                traversed++;
+                double distance = geometry.getDistance(cellX, cellY);
+                double curvature = geometry.getCurvatureDrop(distance);
+                double slope = (dem.getElevation(cellX, cellY) - curvature - observerHeight) / distance;
+                switch (mode) {
+                    // generates heightmap visualizing for every cell in the radius the height required to stay visible from the observer
+                    case 0: {
+                        // calculate height to stay visible from the observer
+                        int visibilityHeight = (int) (observerHeight + distance * visibilitySlope + curvature);
+                        result.recordHeight(cellX, cellY, visibilityHeight);
+                        written++;
+                        break;
+                    }
+                    case 1: // generates the cells that are visible from the observer
+                    {
+                        if (slope > slopeMax) {
+                            result.markVisible(cellX, cellY);
+                            written++;
+                        }
+                        break;
+                    }
+                    case 2: // generates the cells that the observer sees at specific target height
+                    {
+                        // calculate height to stay visible from the observer
+                        int visibilityElevation = (int) (observerHeight + distance * visibilitySlope + curvature);
+                        if (visibilityElevation >= elevationTarget) {
+                            result.recordHeight(cellX, cellY, visibilityElevation);
+                            written++;
+                        }
+                        break;
+                    }
+                    case 3: // checks whether the target is visible from the observer
+                    {
+                        if (slope > slopeMax && cellX == targetX && cellY == targetY) {
+                            result.markVisible(cellX, cellY);
+                            written++;
+                        }
+                        break;
+                    }
+
+                }
+                // atan is monotonic, so the maximum slope corresponds to the maximum angle
+                if (slope > slopeMax) {
+                    slopeMax = slope;
+                    visibilitySlope = slope;
+                }
+            }
+
+            //Only move in either X or Y coordinates, not both.
+            if (Math.abs(tMaxX) < Math.abs(tMaxY)) {
+                tMaxX += tDeltaX;
+                x += stepX;
+            } else {
+                tMaxY += tDeltaY;
+                y += stepY;
+            }
+        }
+        return getCounts(traversed, written);
+    }
+
+    /**
+     * Cast a ray of a {@link RayTemplate} from an observer and record the visibility of its cells, with the
+     * same semantics as {@link #getVoxelTraversalLine}. The cells, distances and curvatures come from the template,
+     * so this is pure array indexing.
+     * @param template rays of the latitude band, sub-pixel offset and radius of the observer
+     * @param ray index of the ray in the template
+     * @param observerX column of the cell of the observer
+     * @param observerY row of the cell of the observer
+     * @param observerHeight height of the observer
+     * @param dem elevation mosaic
+     * @param elevationTarget height of the target (mode 2)
+     * @param mode type of generated viewshed
+     * @return cells traversed and written, see {@link #getTraversedCells} and {@link #getWrittenCells}
+     */
+    public long replayRayTemplate(RayTemplate template, int ray, int observerX, int observerY, double observerHeight,
+                                  DemMosaic dem, double elevationTarget, int mode) {
+        double slopeMax = Double.NEGATIVE_INFINITY;
+        double visibilitySlope = INITIAL_VISIBILITY_SLOPE;
+        int traversed = 0;
+        int written = 0;
+        int end = template.getRayEnd(ray);
+        for (int cell = template.getRayStart(ray); cell < end; cell++) {
+            int cellX = observerX + template.getDx(cell);
+            int cellY = observerY + template.getDy(cell);
+            // the ray cannot re-enter the grid once it has left it
+            if (cellX < 0 || cellY < 0 || cellX >= gridWidth || cellY >= gridHeight) break;
+
+            traversed++;
+            double distance = template.getDistance(cell);
+            double curvature = template.getCurvature(cell);
+            double slope = (dem.getElevation(cellX, cellY) - curvature - observerHeight) / distance;
             switch (mode) {
-                // generates heightmap visualizing for every cell in the radius the height required to stay visible from the observer
-                case 0: {
-                    // calculate height to stay visible from the observer
-                    int visibilityHeight = (int) getVisibilityHeight(observer, distance, thetaMax);
-                    intermediateCell.addVisibilityHeight(visibilityHeight);
-                    int color = rasterUtils.getColor(visibilityHeight);
-                    finalArray[(int) x][(int) y] = color;
+                case 0:
+                    result.recordHeight(cellX, cellY, (int) (observerHeight + distance * visibilitySlope + curvature));
+                    written++;
                     break;
-                }
-                case 1: // generates the cells that are visible from the observer
-                {
-                    if (isVisible(thetaMax, theta)) finalArray[(int) x][(int) y] = 0xFFFF0000;//los.add(intermediateCell);
+                case 1:
+                    if (slope > slopeMax) {
+                        result.markVisible(cellX, cellY);
+                        written++;
+                    }
                     break;
-                }
-                case 2: // generates the cells that the observer sees at specific target height
-                {
-                    // calculate height to stay visible from the observer
-                    int visibilityElevation = (int) getVisibilityHeight(observer,distance,thetaMax);
+                case 2: {
+                    int visibilityElevation = (int) (observerHeight + distance * visibilitySlope + curvature);
                     if (visibilityElevation >= elevationTarget) {
-                        intermediateCell.addVisibilityHeight(visibilityElevation);
-                        int color = rasterUtils.getColor(visibilityElevation);
-                        finalArray[(int) x][(int) y] = color;
+                        result.recordHeight(cellX, cellY, visibilityElevation);
+                        written++;
                     }
                     break;
                 }
-                case 3: // checks whether the target is visible from the observer
-                {
-                    if (isVisible(thetaMax, theta)) {
-                        RasterCell intermediateRasterCell = new RasterCell((int) x, (int) y);
-                        if (intermediateRasterCell.equals(target))
-                            finalArray[(int) x][(int) y] = 255;//los.add(intermediateCell);
+                case 3:
+                    if (slope > slopeMax && cell == end - 1 && template.reachesTarget(ray)) {
+                        result.markVisible(cellX, cellY);
+                        written++;
                     }
                     break;
-                }
-
             }
-            thetaMax = Math.max(theta, thetaMax);
+            if (slope > slopeMax) {
+                slopeMax = slope;
+                visibilitySlope = slope;
+            }
+        }
+        return getCounts(traversed, written);
+    }
 
-            //Only move in either X or Y coordinates, not both.
+    /**
+     * Pack the cells traversed and written by a ray into one value, so the ray traversal allocates nothing
+     */
+    static long getCounts(int traversed, int written) {
+        return ((long) traversed << 32) | written;
+    }
+
+    /**
+     * @param counts value returned by a ray traversal
+     * @return number of cells the ray evaluated
+     */
+    public static int getTraversedCells(long counts) {
+        return (int) (counts >>> 32);
+    }
+
+    /**
+     * @param counts value returned by a ray traversal
+     * @return number of writes of the ray into the result
+     */
+    public static int getWrittenCells(long counts) {
+        return (int) counts;
+    }
+
+    /**
+     * @param x column of a cell
+     * @param y row of a cell
+     * @return the cell packed as x (high half) and y (low half), see {@link #getTraversalCells}
+     */
+    public static long packCell(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param cell packed cell, see {@link #packCell}
+     * @return column of the cell
+     */
+    public static int getCellX(long cell) {
+        return (int) (cell >>> 32);
+    }
+
+    /**
+     * @param cell packed cell, see {@link #packCell}
+     * @return row of the cell
+     */
+    public static int getCellY(long cell) {
+        return (int) cell;
+    }
+
+    /**
+     * Get the cells that {@link #getVoxelTraversalLine} visits from an observer to a peripheral cell
+     * @param geometry lookup tables of the observer
+     * @param targetX column of the peripheral cell
+     * @param targetY row of the peripheral cell
+     * @return the cells in order, see {@link #packCell}
+     */
+    public long[] getTraversalCells(ObserverGeometry geometry, int targetX, int targetY) {
+        double x1 = geometry.getObserverX();
+        double y1 = geometry.getObserverY();
+        double deltaX = targetX - x1;
+        double deltaY = targetY - y1;
+        double stepX = Math.signum(deltaX);
+        double stepY = Math.signum(deltaY);
+        double xOffset = targetX > x1 ? (Math.ceil(x1) - x1) : (x1 - Math.floor(x1));
+        double yOffset = targetY > y1 ? (Math.ceil(y1) - y1) : (y1 - Math.floor(y1));
+        double angle = Math.atan2(-deltaY, deltaX);
+        double tMaxX = xOffset / Math.cos(angle);
+        double tMaxY = yOffset / Math.sin(angle);
+        double tDeltaX = 1.0 / Math.cos(angle);
+        double tDeltaY = 1.0 / Math.sin(angle);
+
+        int manhattanDistance = (int) (Math.abs(targetX - Math.floor(x1)) + Math.abs(targetY - Math.floor(y1)));
+        long[] cells = new long[manhattanDistance + 1];
+        int count = 0;
+        double x = x1;
+        double y = y1;
+        for (int t = 0; t <= manhattanDistance; ++t) {
+            int cellX = (int) x;
+            int cellY = (int) y;
+            if (cellX < 0 || cellY < 0 || cellX >= gridWidth || cellY >= gridHeight) break;
+            cells[count++] = packCell(cellX, cellY);
             if (Math.abs(tMaxX) < Math.abs(tMaxY)) {
                 tMaxX += tDeltaX;
                 x += stepX;
@@ -299,6 +545,29 @@ public class SpatialUtils {
                 y += stepY;
             }
         }
+        return count == cells.length ? cells : Arrays.copyOf(cells, count);
+    }
+
+    /**
+     * Check whether no cell of a rectangle can rise above the horizon of a ray
+     * @param geometry lookup tables of the observer
+     * @param maxElevation maximum elevation within the rectangle
+     * @param x0 first column
+     * @param y0 first row
+     * @param x1 last column (inclusive)
+     * @param y1 last row (inclusive)
+     * @param slopeMax tangent of the maximum angle of the ray so far
+     * @return whether the slope of every cell of the rectangle is at most slopeMax
+     */
+    private boolean isBelowHorizon(ObserverGeometry geometry, double maxElevation, int x0, int y0, int x1, int y1, double slopeMax) {
+        if (slopeMax == Double.NEGATIVE_INFINITY) return false;
+        double minDistance = geometry.getMinDistance(x0, y0, x1, y1);
+        if (minDistance <= 0) return false;
+        double rise = maxElevation - geometry.getCurvatureDrop(minDistance) - geometry.getObserver().getHeight();
+        // a rise above the observer is steepest at the nearest cell, a drop below it at the farthest one
+        double slopeBound = rise > 0 ? rise / minDistance : rise / geometry.getMaxDistance(x0, y0, x1, y1);
+        // keep a margin for the rounding of the per-cell slopes
+        return slopeBound < slopeMax - 1e-12;
     }
 
     public double calculateAzimuth(double x1, double y1, double x2, double y2) {
@@ -319,50 +588,4 @@ public class SpatialUtils {
         return azimuthDegrees;
     }
 
-    public RasterCell radialSweep(RasterCell rc, PointOfInterest o, double distance, double bearing, HashSet<RasterCell> visited) {
-        // Map of bearing ranges to search for
-        int[][] directions;
-        // search in different directions based on the azimuth of the current cell and the observer
-        if (bearing >= 0.0 && bearing <= 90.0) {
-            directions = new int[][] {
-                    { 1,  0}, // Right
-                    { 1,  1}, // Bottom-right
-                    { 0,  1},  // Bottom
-                    { -1, 1} // Bottom-left
-            };
-        } else if (bearing > 90.0 && bearing <= 180.0) {
-            directions = new int[][] {
-                    { 0,  1}, // Bottom
-                    { -1, 1}, // Bottom-left
-                    { -1, 0},  // Left
-                    {-1, -1} // Top-left
-            };
-        } else if (bearing > 180.0 && bearing <= 270.0) {
-            directions = new int[][] {
-                    { -1, 0}, // Left
-                    {-1, -1}, // Top-left
-                    { 0, -1},  // Top
-                    { 1, -1} // Top-right
-            };
-        } else {
-            directions = new int[][] {
-                    { 0, -1}, // Top
-                    { 1, -1}, // Top-right
-                    { 1,  0},  // Right
-                    { 1,  1} // Bottom-right
-            };
-        }
-        // search the cell in the respective directions
-        for (int[] dir : directions) {
-            RasterCell newRc = new RasterCell(rc.getX() + dir[0], rc.getY() + dir[1]);
-
-            double[] gc = getLonLat(newRc.getX(), newRc.getY());
-            if (getHaversineDistance(o.getLatitude(), o.getLongitude(), gc[1], gc[0]) <= distance && !visited.contains(newRc)) {
-                return newRc;
-            }
-        }
-        // Return the original cell if no valid new cell is found
-        return rc;
-    }
-
 }
@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of the decoding of a DEM tile
+ */
+@Name("viewshed.TileLoad")
+@Label("DEM Tile Load")
+@Category("Viewshed")
+@Description("Decoding of a GeoTIFF DEM tile")
+@StackTrace(false)
+public class TileLoadEvent extends Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytes;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+}
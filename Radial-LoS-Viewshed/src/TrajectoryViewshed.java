@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+
+/**
+ * Viewsheds of an observer moving along a trajectory, e.g. a vehicle or a drone sampled every few meters. The grid
+ * window of the whole trajectory and its DEM mosaic are set up once and shared by all points, and all results are
+ * georeferenced on that window.
+ * <p>
+ * The only reuse between points is deduplication by cell: consecutive points on the same DEM cell and at the same
+ * height share one viewshed (like the {@link ViewshedResultCache}, the viewshed of a cell is that of the first point on
+ * it). Every point that enters a new cell or changes height is a full viewshed calculation on the shared window; no
+ * horizon or ray is carried over from the previous cell, so the cost grows with the number of distinct cells of the
+ * path, not with the number of points.
+ * <p>
+ * The trajectory yields the per-point results and the union raster "visible at any time along the path" (modes 1 and
+ * 3) or the lowest required height over the path (modes 0 and 2). Without a per-point listener the points write
+ * straight into the union and run concurrently on one pool, because the merge semantics of {@link ViewshedResult}
+ * do not depend on the order of the writes.
+ */
+public class TrajectoryViewshed {
+
+    private static final int TILE_SIZE = 3601;
+
+    /**
+     * Calculate the union viewshed of a trajectory with {@link R3Engine}
+     * @param path the positions and heights of the observer in order
+     * @param radius radius in meters
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param numThreads number of threads
+     * @return union of the viewsheds of all points
+     */
+    public static ViewshedResult viewshed(List<PointOfInterest> path, double radius, double targetHeight, int mode, int numThreads) {
+        return viewshed(path, radius, targetHeight, mode, numThreads, new R3Engine(), null);
+    }
+
+    /**
+     * Calculate the viewsheds of a trajectory
+     * @param path the positions and heights of the observer in order
+     * @param radius radius in meters
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param numThreads number of threads
+     * @param engine viewshed algorithm
+     * @param listener receives the index of every point with its result in path order (points on the same cell receive
+     *                 the same result, which must not be modified), or null to calculate the union only
+     * @return union of the viewsheds of all points
+     */
+    public static ViewshedResult viewshed(List<PointOfInterest> path, double radius, double targetHeight, int mode, int numThreads,
+                                          ViewshedEngine engine, BiConsumer<Integer, ViewshedResult> listener) {
+        if (path.isEmpty()) throw new IllegalArgumentException("The trajectory has no points");
+        long start = System.currentTimeMillis();
+        RasterUtils ru = new RasterUtils(TILE_SIZE);
+        SpatialUtils su = new SpatialUtils(ru);
+
+        // one window over the radius of every point, with tiles loaded only when a ray first touches them
+        List<ViewshedRequest> requests = new ArrayList<>();
+        for (PointOfInterest point : path) {
+            requests.add(new ViewshedRequest(point.getLongitude(), point.getLatitude(), point.getHeight(), radius, targetHeight, mode));
+        }
+        GridWindow tiles = GridWindow.forObservers(su, requests, TILE_SIZE);
+        GridWindow window = null;
+        for (PointOfInterest point : path) {
+            GridWindow cropped = tiles.cropToRadius(su, point.getLongitude(), point.getLatitude(), radius);
+            window = window == null ? cropped : window.union(cropped);
+        }
+        window.applyTo(su);
+        DemMosaic dem = window.getView(tiles.createMosaic());
+        System.out.println("Trajectory of " + path.size() + " points | Grid width: " + window.getWidth() + " | Grid height: " + window.getHeight());
+
+        // runs of consecutive points on the same cell at the same height
+        List<Integer> runs = new ArrayList<>();
+        long previousCell = 0;
+        for (int i = 0; i < path.size(); i++) {
+            PointOfInterest point = path.get(i);
+            double[] xy = su.getXY(point.getLongitude(), point.getLatitude());
+            long cell = ((long) Math.floor(xy[0]) << 32) | ((long) Math.floor(xy[1]) & 0xFFFFFFFFL);
+            if (i == 0 || cell != previousCell || point.getHeight() != path.get(i - 1).getHeight()) runs.add(i);
+            previousCell = cell;
+        }
+        runs.add(path.size());
+
+        su.initializeResult(mode);
+        ViewshedResult union = su.getResult();
+        GridWindow grid = window;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        if (listener == null) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int run = 0; run + 1 < runs.size(); run++) {
+                PointOfInterest point = path.get(runs.get(run));
+                tasks.add(ForkJoinTask.adapt(() -> calculate(ru, grid, dem, point, union, radius, targetHeight, mode, numThreads, engine)));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } else {
+            for (int run = 0; run + 1 < runs.size(); run++) {
+                PointOfInterest point = path.get(runs.get(run));
+                ViewshedResult result = new ViewshedResult(grid.getWidth(), grid.getHeight(), mode, grid.getMinLon(), grid.getMaxLon(),
+                        grid.getMinLat(), grid.getMaxLat());
+                pool.invoke(ForkJoinTask.adapt(() -> calculate(ru, grid, dem, point, result, radius, targetHeight, mode, numThreads, engine)));
+                union.merge(result);
+                for (int i = runs.get(run); i < runs.get(run + 1); i++) {
+                    listener.accept(i, result);
+                }
+            }
+        }
+        pool.shutdown();
+
+        long duration = System.currentTimeMillis() - start;
+        System.out.println("Time taken to calculate the viewsheds of " + path.size() + " points (" + (runs.size() - 1)
+                + " distinct cells): " + duration + " milliseconds (" + (path.size() * 1000.0 / Math.max(1, duration)) + " points per second)");
+        System.out.println("DEM tiles loaded: " + dem.getLoadedTileCount() + " | " + DemTileCache.getInstance());
+        return union;
+    }
+
+    /**
+     * Cast the rays of one point of the trajectory into a result, on a worker of the pool
+     */
+    private static void calculate(RasterUtils ru, GridWindow window, DemMosaic dem, PointOfInterest point, ViewshedResult result,
+                                  double radius, double targetHeight, int mode, int parallelism, ViewshedEngine engine) {
+        SpatialUtils su = new SpatialUtils(ru);
+        window.applyTo(su);
+        su.setResult(result);
+        ObserverGeometry geometry = new ObserverGeometry(su, point);
+        engine.calculate(su, geometry, dem, radius, targetHeight, mode, parallelism, null);
+    }
+}
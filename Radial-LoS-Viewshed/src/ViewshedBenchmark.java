@@ -0,0 +1,451 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmarks of the hot paths of the viewshed on deterministic synthetic DEMs. It only needs plain Java:
+ * java -Xmx4g ViewshedBenchmark [radii] [thread counts]
+ * e.g. java -Xmx4g ViewshedBenchmark 5000,10000,20000 1,8
+ * <p>
+ * Every benchmark runs a few warmup iterations that are not measured (JIT compilation, first touch of the
+ * memory), then reports the mean, standard deviation and minimum of the measured iterations. The DEMs are
+ * generated in memory (tile decoding uses GeoTIFF files written to a temporary directory), so no disk reads of
+ * real tiles end up in the numbers.
+ */
+public class ViewshedBenchmark {
+
+    private static final int TILE_SIZE = 3601;
+    private static final double MIN_SHIFT = -0.00013888888;
+    private static final double MAX_SHIFT = 0.00013888888889;
+    private static final double LON = 23.5032;
+    private static final double LAT = 38.5342;
+    private static final double OBSERVER_HEIGHT = 600;
+    private static final double TARGET_HEIGHT = 450;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    /**
+     * Synthetic DEMs of one tile
+     */
+    public enum Fixture {
+        /**
+         * Constant elevation, every cell is visible
+         */
+        FLAT,
+        /**
+         * Elevation rising steadily to the east
+         */
+        RAMP,
+        /**
+         * Ridged multi-octave value noise, a mountainous terrain with many occlusions
+         */
+        RIDGES
+    }
+
+    private static final Map<Fixture, float[]> FIXTURES = new EnumMap<>(Fixture.class);
+    // keeps the results of the benchmarks alive, so the JIT cannot drop the measured work
+    private static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        double[] radii = args.length > 0 ? Arrays.stream(args[0].split(",")).mapToDouble(Double::parseDouble).toArray()
+                : new double[]{5000, 10000, 20000};
+        int[] threadCounts = args.length > 1 ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, Runtime.getRuntime().availableProcessors()};
+        double maxRadius = Arrays.stream(radii).max().orElse(20000);
+
+        benchmarkTileLoading();
+        for (double radius : radii) {
+            benchmarkPerimeterRing(radius);
+        }
+        for (Fixture fixture : Fixture.values()) {
+            benchmarkRayTraversal(fixture, maxRadius, 1);
+            benchmarkRayTraversal(fixture, maxRadius, 2);
+        }
+        for (Fixture fixture : Fixture.values()) {
+            benchmarkRayTemplateReplay(fixture, maxRadius, 0);
+            benchmarkRayTemplateReplay(fixture, maxRadius, 1);
+        }
+        for (Fixture fixture : Fixture.values()) {
+            for (double radius : radii) {
+                for (int mode = 0; mode <= 3; mode++) {
+                    for (int threads : threadCounts) {
+                        benchmarkViewshed(fixture, radius, mode, threads);
+                    }
+                }
+            }
+        }
+        benchmarkExport(1, maxRadius);
+        benchmarkExport(0, maxRadius);
+    }
+
+    /**
+     * Run a benchmark: warmup iterations first, then the measured ones
+     * @param name name of the benchmark
+     * @param operations operations per iteration, for the time per operation
+     * @param unit unit of an operation
+     * @param iteration the measured work, returns a value that must not be optimized away
+     */
+    private static void measure(String name, long operations, String unit, LongSupplier iteration) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += iteration.getAsLong();
+        }
+        double[] millis = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += iteration.getAsLong();
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        double mean = Arrays.stream(millis).average().orElse(0);
+        double variance = Arrays.stream(millis).map(m -> (m - mean) * (m - mean)).sum() / Math.max(1, millis.length - 1);
+        double min = Arrays.stream(millis).min().orElse(0);
+        System.out.println(String.format("%-60s %10.3f +- %8.3f ms (min %10.3f ms) | %10.3f us/%s", name, mean, Math.sqrt(variance),
+                min, mean * 1000 / Math.max(1, operations), unit));
+    }
+
+    /**
+     * Measure the decoding of a tile from an uncompressed and from a deflate compressed GeoTIFF, and the lookups
+     * of a full pass over a mosaic of 2x2 tiles
+     */
+    public static void benchmarkTileLoading() throws IOException {
+        float[] heights = getFixture(Fixture.RIDGES);
+        Path directory = Files.createTempDirectory("viewshed-benchmark");
+        try {
+            for (boolean deflate : new boolean[]{false, true}) {
+                Path file = directory.resolve(deflate ? "deflate.tif" : "none.tif");
+                writeGeoTiff(file, heights, TILE_SIZE, deflate);
+                measure("Tile loading (" + (deflate ? "deflate" : "uncompressed") + ")", 1, "tile", () -> {
+                    try {
+                        return (long) DemTile.load(file).getMaxElevation();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                Files.delete(file);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+
+        DemMosaic mosaic = new DemMosaic((int) LON, (int) LAT, 2, 2, TILE_SIZE);
+        DemTile tile = new DemTile(TILE_SIZE, TILE_SIZE, heights);
+        for (int row = 0; row < 2; row++) {
+            for (int column = 0; column < 2; column++) {
+                mosaic.setTile(column, row, tile);
+            }
+        }
+        int size = 2 * TILE_SIZE;
+        measure("Mosaic lookups (2x2 tiles, row by row)", (long) size * size / 1000, "1000 cells", () -> {
+            double sum = 0;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    sum += mosaic.getElevation(x, y);
+                }
+            }
+            return (long) sum;
+        });
+    }
+
+    /**
+     * Measure the generation of the ring of peripheral cells
+     * @param radius radius in meters
+     */
+    public static void benchmarkPerimeterRing(double radius) {
+        SpatialUtils su = createSpatialUtils(1);
+        ObserverGeometry geometry = new ObserverGeometry(su, new PointOfInterest(LON, LAT, OBSERVER_HEIGHT));
+        int cells = new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight).size();
+        measure("Perimeter ring (radius " + radius + " m, " + cells + " cells)", 1, "ring",
+                () -> new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight).size());
+    }
+
+    /**
+     * Measure time and allocated bytes per ray of {@link SpatialUtils#getVoxelTraversalLine} on the ridges
+     * @param radius radius in meters
+     * @param mode type of generated viewshed
+     */
+    public static void benchmarkRayTraversal(double radius, int mode) {
+        benchmarkRayTraversal(Fixture.RIDGES, radius, mode);
+    }
+
+    /**
+     * Measure time and allocated bytes per ray of {@link SpatialUtils#getVoxelTraversalLine}
+     * @param fixture synthetic DEM
+     * @param radius radius in meters
+     * @param mode type of generated viewshed
+     */
+    public static void benchmarkRayTraversal(Fixture fixture, double radius, int mode) {
+        DemMosaic dem = createDem(fixture);
+        SpatialUtils su = createSpatialUtils(mode);
+        PointOfInterest observer = new PointOfInterest(LON, LAT, OBSERVER_HEIGHT);
+        ObserverGeometry geometry = new ObserverGeometry(su, observer);
+        PerimeterRing ring = new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight);
+        int rays = ring.size();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        measure("Ray traversal (" + fixture + ", mode " + mode + ", radius " + radius + " m)", rays, "ray", () -> {
+            for (int i = 0; i < rays; i++) {
+                su.getVoxelTraversalLine(geometry, ring.getX(i), ring.getY(i), dem, TARGET_HEIGHT, mode);
+            }
+            return rays;
+        });
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        System.out.println("    allocated " + ((double) bytes / rays / (WARMUP_ITERATIONS + MEASURED_ITERATIONS)) + " bytes/ray");
+    }
+
+    /**
+     * Measure the replay of the rays of a {@link RayTemplate} per ray
+     * @param fixture synthetic DEM
+     * @param radius radius in meters
+     * @param mode type of generated viewshed
+     */
+    public static void benchmarkRayTemplateReplay(Fixture fixture, double radius, int mode) {
+        DemMosaic dem = createDem(fixture);
+        SpatialUtils su = createSpatialUtils(mode);
+        ObserverGeometry geometry = new ObserverGeometry(su, new PointOfInterest(LON, LAT, OBSERVER_HEIGHT));
+        RayTemplate template = RayTemplateCache.getInstance().getTemplate(LAT, geometry.getObserverX(), geometry.getObserverY(), radius);
+        int observerX = (int) geometry.getObserverX();
+        int observerY = (int) geometry.getObserverY();
+        int rays = template.size();
+        measure("Ray template replay (" + fixture + ", mode " + mode + ", radius " + radius + " m)", rays, "ray", () -> {
+            long cells = 0;
+            for (int i = 0; i < rays; i++) {
+                cells += su.replayRayTemplate(template, i, observerX, observerY, OBSERVER_HEIGHT, dem, TARGET_HEIGHT, mode);
+            }
+            return cells;
+        });
+    }
+
+    /**
+     * Measure a full viewshed with the {@link R3Engine}, without tile loading and export
+     * @param fixture synthetic DEM
+     * @param radius radius in meters
+     * @param mode type of generated viewshed
+     * @param numThreads number of threads
+     */
+    public static void benchmarkViewshed(Fixture fixture, double radius, int mode, int numThreads) {
+        DemMosaic dem = createDem(fixture);
+        SpatialUtils su = createSpatialUtils(mode);
+        ObserverGeometry geometry = new ObserverGeometry(su, new PointOfInterest(LON, LAT, OBSERVER_HEIGHT));
+        ViewshedEngine engine = new R3Engine();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        measure("Viewshed (" + fixture + ", mode " + mode + ", radius " + radius + " m, " + numThreads + " threads)", 1, "viewshed", () -> {
+            su.initializeResult(mode);
+            pool.invoke(ForkJoinTask.adapt(() -> engine.calculate(su, geometry, dem, radius, TARGET_HEIGHT, mode, numThreads, null)));
+            return su.getResult().getSizeInBytes();
+        });
+        pool.shutdown();
+    }
+
+    /**
+     * Measure the export of a viewshed of the ridges as png and pgw files into a temporary directory
+     * @param mode type of generated viewshed
+     * @param radius radius in meters
+     */
+    public static void benchmarkExport(int mode, double radius) throws IOException {
+        SpatialUtils su = createSpatialUtils(mode);
+        RasterUtils ru = new RasterUtils(TILE_SIZE);
+        ObserverGeometry geometry = new ObserverGeometry(su, new PointOfInterest(LON, LAT, OBSERVER_HEIGHT));
+        ForkJoinPool pool = new ForkJoinPool(1);
+        pool.invoke(ForkJoinTask.adapt(() -> new R3Engine().calculate(su, geometry, createDem(Fixture.RIDGES), radius, TARGET_HEIGHT, mode, 1, null)));
+        pool.shutdown();
+
+        Path directory = Files.createTempDirectory("viewshed-benchmark");
+        String name = directory.resolve("viewshed_" + mode).toString();
+        try {
+            measure("Export (mode " + mode + ", " + su.gridWidth + "x" + su.gridHeight + ")", 1, "image", () -> {
+                ru.resultToImage(su.getResult(), name);
+                return new File(name + ".png").length();
+            });
+        } finally {
+            Files.deleteIfExists(Path.of(name + ".png"));
+            Files.deleteIfExists(Path.of(name + ".pgw"));
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * @param mode type of generated viewshed
+     * @return SpatialUtils set up the same way as {@link Main#viewshed} for a single tile around the observer
+     */
+    public static SpatialUtils createSpatialUtils(int mode) {
+        SpatialUtils su = new SpatialUtils(new RasterUtils(TILE_SIZE));
+        int lon = (int) LON;
+        int lat = (int) LAT;
+        su.setGridBorders(lon + MIN_SHIFT, lon + 1 + MAX_SHIFT, lat + MIN_SHIFT, lat + 1 + MAX_SHIFT);
+        su.setGridWidth(TILE_SIZE);
+        su.setGridHeight(TILE_SIZE);
+        su.initializeResult(mode);
+        return su;
+    }
+
+    /**
+     * @return a single tile mosaic of synthetic ridges around the observer
+     */
+    public static DemMosaic createSyntheticDem() {
+        return createDem(Fixture.RIDGES);
+    }
+
+    /**
+     * @param fixture synthetic DEM
+     * @return a single tile mosaic of the fixture around the observer
+     */
+    public static DemMosaic createDem(Fixture fixture) {
+        DemMosaic dem = new DemMosaic((int) LON, (int) LAT, 1, 1, TILE_SIZE);
+        dem.setTile(0, 0, new DemTile(TILE_SIZE, TILE_SIZE, getFixture(fixture)));
+        return dem;
+    }
+
+    /**
+     * Generate the elevations of a fixture, once per fixture
+     * @param fixture synthetic DEM
+     * @return row-major elevations of a tile
+     */
+    public static synchronized float[] getFixture(Fixture fixture) {
+        float[] heights = FIXTURES.get(fixture);
+        if (heights != null) return heights;
+        heights = new float[TILE_SIZE * TILE_SIZE];
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                double h;
+                switch (fixture) {
+                    case FLAT:
+                        h = 200;
+                        break;
+                    case RAMP:
+                        h = 100 + 0.3 * x;
+                        break;
+                    default: {
+                        // ridged noise: the creases of |noise| become sharp crests, finer octaves add detail
+                        h = 0;
+                        double amplitude = 900;
+                        double frequency = 1.0 / 600;
+                        for (int octave = 0; octave < 6; octave++) {
+                            double ridge = 1 - Math.abs(2 * getValueNoise(x * frequency, y * frequency, octave) - 1);
+                            h += amplitude * ridge * ridge;
+                            amplitude *= 0.5;
+                            frequency *= 2;
+                        }
+                        break;
+                    }
+                }
+                heights[y * TILE_SIZE + x] = (float) h;
+            }
+        }
+        FIXTURES.put(fixture, heights);
+        return heights;
+    }
+
+    /**
+     * Smoothly interpolated pseudo-random values on an integer lattice
+     * @return noise between 0 and 1
+     */
+    private static double getValueNoise(double x, double y, int seed) {
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        double tx = x - x0;
+        double ty = y - y0;
+        tx = tx * tx * (3 - 2 * tx);
+        ty = ty * ty * (3 - 2 * ty);
+        double top = getLatticeValue(x0, y0, seed) + tx * (getLatticeValue(x0 + 1, y0, seed) - getLatticeValue(x0, y0, seed));
+        double bottom = getLatticeValue(x0, y0 + 1, seed) + tx * (getLatticeValue(x0 + 1, y0 + 1, seed) - getLatticeValue(x0, y0 + 1, seed));
+        return top + ty * (bottom - top);
+    }
+
+    /**
+     * @return pseudo-random value between 0 and 1 of a lattice point
+     */
+    private static double getLatticeValue(int x, int y, int seed) {
+        int h = x * 374761393 + y * 668265263 + seed * 1274126177;
+        h = (h ^ (h >>> 13)) * 1274126177;
+        h ^= h >>> 16;
+        return (h & 0xFFFFFF) / (double) 0xFFFFFF;
+    }
+
+    /**
+     * Write a single-band float32 GeoTIFF with strips of 16 rows (no georeferencing tags, which the reader ignores)
+     * @param file output file
+     * @param heights row-major elevations
+     * @param size width and height of the image
+     * @param deflate whether to compress the strips with deflate
+     */
+    private static void writeGeoTiff(Path file, float[] heights, int size, boolean deflate) throws IOException {
+        int rowsPerStrip = 16;
+        int strips = (size + rowsPerStrip - 1) / rowsPerStrip;
+        byte[][] data = new byte[strips][];
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        for (int strip = 0; strip < strips; strip++) {
+            int rows = Math.min(rowsPerStrip, size - strip * rowsPerStrip);
+            ByteBuffer raw = ByteBuffer.allocate(rows * size * 4).order(ByteOrder.LITTLE_ENDIAN);
+            raw.asFloatBuffer().put(heights, strip * rowsPerStrip * size, rows * size);
+            if (deflater == null) {
+                data[strip] = raw.array();
+                continue;
+            }
+            deflater.reset();
+            deflater.setInput(raw.array());
+            deflater.finish();
+            byte[] compressed = new byte[raw.capacity() + 1024];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            data[strip] = Arrays.copyOf(compressed, length);
+        }
+        if (deflater != null) deflater.end();
+
+        int entries = 9;
+        int ifdSize = 2 + 12 * entries + 4;
+        int offsetsStart = 8 + ifdSize;
+        int countsStart = offsetsStart + 4 * strips;
+        long dataStart = countsStart + 4L * strips;
+        ByteBuffer header = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) entries);
+        // tags in ascending order: type 3 is SHORT, 4 is LONG
+        putEntry(header, 256, 4, 1, size);
+        putEntry(header, 257, 4, 1, size);
+        putEntry(header, 258, 3, 1, 32);
+        putEntry(header, 259, 3, 1, deflate ? 8 : 1);
+        putEntry(header, 273, 4, strips, offsetsStart);
+        putEntry(header, 277, 3, 1, 1);
+        putEntry(header, 278, 4, 1, rowsPerStrip);
+        putEntry(header, 279, 4, strips, countsStart);
+        putEntry(header, 339, 3, 1, 3);
+        header.putInt(0);
+        long offset = dataStart;
+        for (byte[] strip : data) {
+            header.putInt((int) offset);
+            offset += strip.length;
+        }
+        for (byte[] strip : data) {
+            header.putInt(strip.length);
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            out.write(header.array());
+            for (byte[] strip : data) {
+                out.write(strip);
+            }
+        }
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) buffer.putShort((short) value).putShort((short) 0);
+        else buffer.putInt(value);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Algorithm that calculates the viewshed of one observer into the result of a {@link SpatialUtils}.
+ * Implementations run their parallel parts as fork-join tasks, so they are called from a worker thread of the
+ * pool that should run them (e.g. from a task invoked on it).
+ * <ul>
+ *     <li>{@link R3Engine}: rays to every peripheral cell, every cell they cross is evaluated by every ray (exact)</li>
+ *     <li>{@link RayTemplateEngine}: the same rays replayed from cached {@link RayTemplate}s</li>
+ *     <li>{@link XDrawEngine}: concentric rings, every cell interpolates its horizon from the previous ring (approximate)</li>
+ * </ul>
+ */
+public interface ViewshedEngine {
+
+    /**
+     * @return short name of the algorithm
+     */
+    String getName();
+
+    /**
+     * Calculate the viewshed of an observer
+     * @param su spatial utils holding the grid and the initialized result
+     * @param geometry lookup tables of the observer
+     * @param dem elevation mosaic of the grid
+     * @param radius radius in meters
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     * @param parallelism number of threads of the pool
+     * @param statistics per-thread statistics, may be null
+     */
+    void calculate(SpatialUtils su, ObserverGeometry geometry, DemMosaic dem, double radius, double targetHeight, int mode,
+                   int parallelism, WorkerStatistics statistics);
+}
@@ -0,0 +1,39 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the calculation of the viewshed of one observer (without DEM setup and export)
+ */
+@Name("viewshed.Viewshed")
+@Label("Viewshed")
+@Category("Viewshed")
+@Description("Calculation of the viewshed of one observer")
+public class ViewshedEvent extends Event {
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Longitude")
+    double longitude;
+
+    @Label("Latitude")
+    double latitude;
+
+    @Label("Radius")
+    double radius;
+
+    @Label("Mode")
+    int mode;
+
+    @Label("Rays")
+    long rays;
+
+    @Label("Cells Traversed")
+    long cells;
+
+    @Label("Cells Written")
+    long writes;
+}
@@ -0,0 +1,88 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local load generator for the {@link ViewshedServer}. Concurrent clients send viewshed requests for observers drawn
+ * from a small set, so identical requests overlap and exercise the coalescing, and the latency percentiles are
+ * reported at the end.
+ * <p>
+ * Arguments: base url, clients, requests per client, distinct observers, radius, mode, format, e.g.
+ * {@code java ViewshedLoadTest http://localhost:8080 16 50 8 20000 1 png}
+ */
+public class ViewshedLoadTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        String url = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int observers = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        double radius = args.length > 4 ? Double.parseDouble(args[4]) : 20000;
+        int mode = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        String format = args.length > 6 ? args[6] : "png";
+
+        // observers around the default observer of Main
+        Random random = new Random(42);
+        URI[] uris = new URI[observers];
+        for (int i = 0; i < observers; i++) {
+            double lon = 23.4 + 0.2 * random.nextDouble();
+            double lat = 38.45 + 0.15 * random.nextDouble();
+            uris[i] = URI.create(url + "/viewshed?lon=" + lon + "&lat=" + lat + "&height=600&radius=" + radius
+                    + "&mode=" + mode + "&target=450&format=" + format);
+        }
+
+        HttpClient client = HttpClient.newHttpClient();
+        long[] latencies = new long[clients * requestsPerClient];
+        AtomicInteger next = new AtomicInteger();
+        Map<Integer, AtomicInteger> statuses = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int seed = c;
+            new Thread(() -> {
+                Random choice = new Random(seed);
+                try {
+                    for (int r = 0; r < requestsPerClient; r++) {
+                        HttpRequest request = HttpRequest.newBuilder(uris[choice.nextInt(observers)]).GET().build();
+                        long requestStart = System.nanoTime();
+                        int status;
+                        try {
+                            status = client.send(request, HttpResponse.BodyHandlers.ofByteArray()).statusCode();
+                        } catch (Exception e) {
+                            status = -1;
+                        }
+                        latencies[next.getAndIncrement()] = System.nanoTime() - requestStart;
+                        statuses.computeIfAbsent(status, s -> new AtomicInteger()).incrementAndGet();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long duration = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println("Requests: " + latencies.length + " | Clients: " + clients + " | Observers: " + observers
+                + " | Status codes: " + new TreeMap<>(statuses));
+        System.out.println("Throughput: " + (latencies.length * 1e9 / duration) + " requests per second");
+        System.out.println("Latency p50: " + getPercentile(latencies, 50) + " | p90: " + getPercentile(latencies, 90)
+                + " | p99: " + getPercentile(latencies, 99) + " | max: " + latencies[latencies.length - 1] / 1e6 + " milliseconds");
+    }
+
+    /**
+     * @return percentile of sorted latencies in milliseconds (nearest rank)
+     */
+    private static double getPercentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Metrics of one viewshed run: the DEM tiles it used, the work of every thread of the pool, how often the rays
+ * traversed and wrote cells, and the time of the calculation and of the export. The same numbers are recorded as
+ * flight recorder events ({@link ViewshedEvent}, {@link RayBatchEvent}, {@link TileLoadEvent}, {@link ExportEvent}).
+ */
+public class ViewshedMetrics {
+
+    private final String engine;
+    private final int mode;
+    private final double radius;
+    private final long bytesRead;
+    private final long[] tileLoadNanos;
+    private final long[] rays;
+    private final long[] cells;
+    private final long[] busyNanos;
+    private final long totalRays;
+    private final long cellsTraversed;
+    private final long cellsWritten;
+    private final long distinctCellsWritten;
+    private final long computeNanos;
+    private final long exportNanos;
+
+    /**
+     * @param engine name of the viewshed engine
+     * @param mode type of generated viewshed
+     * @param radius radius in meters
+     * @param tiles DEM tiles loaded by the run
+     * @param bytesRead size of the DEM files the run read from disk, see {@link DemMosaic#getBytesRead()}
+     * @param statistics per-thread statistics of the run
+     * @param distinctCellsWritten number of cells of the result that any ray wrote
+     * @param computeNanos time of the calculation
+     * @param exportNanos time of the export (colorizing and encoding)
+     */
+    public ViewshedMetrics(String engine, int mode, double radius, List<DemTile> tiles, long bytesRead, WorkerStatistics statistics,
+                           long distinctCellsWritten, long computeNanos, long exportNanos) {
+        this.engine = engine;
+        this.mode = mode;
+        this.radius = radius;
+        this.bytesRead = bytesRead;
+        this.tileLoadNanos = tiles.stream().mapToLong(DemTile::getLoadNanos).toArray();
+        int workers = statistics.getWorkers();
+        this.rays = new long[workers];
+        this.cells = new long[workers];
+        this.busyNanos = new long[workers];
+        for (int i = 0; i < workers; i++) {
+            rays[i] = statistics.getRays(i);
+            cells[i] = statistics.getCells(i);
+            busyNanos[i] = statistics.getBusyNanos(i);
+        }
+        // the totals include threads beyond the expected workers
+        this.totalRays = statistics.getTotalRays();
+        this.cellsTraversed = statistics.getTotalCells();
+        this.cellsWritten = statistics.getTotalWrites();
+        this.distinctCellsWritten = distinctCellsWritten;
+        this.computeNanos = computeNanos;
+        this.exportNanos = exportNanos;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public int getTilesLoaded() {
+        return tileLoadNanos.length;
+    }
+
+    /**
+     * @return size of the DEM files that the run read from disk in bytes (tiles from the {@link DemTileCache} are
+     * not counted)
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return decoding time of every loaded tile in nanoseconds (the tile may have been decoded by an earlier run and
+     * come from the {@link DemTileCache})
+     */
+    public long[] getTileLoadNanos() {
+        return tileLoadNanos.clone();
+    }
+
+    /**
+     * @return rays cast by every thread
+     */
+    public long[] getRaysPerThread() {
+        return rays.clone();
+    }
+
+    /**
+     * @return cells traversed by every thread
+     */
+    public long[] getCellsPerThread() {
+        return cells.clone();
+    }
+
+    /**
+     * @return busy time of every thread in nanoseconds
+     */
+    public long[] getBusyNanosPerThread() {
+        return busyNanos.clone();
+    }
+
+    public long getRays() {
+        return totalRays;
+    }
+
+    /**
+     * @return cells evaluated by the rays (cells skipped through the elevation pyramid are not counted)
+     */
+    public long getCellsTraversed() {
+        return cellsTraversed;
+    }
+
+    /**
+     * @return writes of the rays into the result, including repeated writes of the same cell
+     */
+    public long getCellsWritten() {
+        return cellsWritten;
+    }
+
+    /**
+     * @return cells of the result that any ray wrote
+     */
+    public long getDistinctCellsWritten() {
+        return distinctCellsWritten;
+    }
+
+    /**
+     * @return average number of writes per written cell
+     */
+    public double getOverdrawRatio() {
+        return distinctCellsWritten == 0 ? 0 : (double) cellsWritten / distinctCellsWritten;
+    }
+
+    public long getComputeNanos() {
+        return computeNanos;
+    }
+
+    public long getExportNanos() {
+        return exportNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ViewshedMetrics{" +
+                "engine=" + engine +
+                ", mode=" + mode +
+                ", radius=" + radius +
+                ", tilesLoaded=" + getTilesLoaded() +
+                ", bytesRead=" + getBytesRead() +
+                ", tileLoadNanos=" + Arrays.toString(tileLoadNanos) +
+                ", raysPerThread=" + Arrays.toString(rays) +
+                ", cellsPerThread=" + Arrays.toString(cells) +
+                ", busyNanosPerThread=" + Arrays.toString(busyNanos) +
+                ", cellsTraversed=" + cellsTraversed +
+                ", cellsWritten=" + cellsWritten +
+                ", distinctCellsWritten=" + distinctCellsWritten +
+                ", overdrawRatio=" + getOverdrawRatio() +
+                ", computeNanos=" + computeNanos +
+                ", exportNanos=" + exportNanos +
+                '}';
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.Objects;
+
+/**
+ * Parameters of the viewshed of a single observer.
+ */
+public class ViewshedRequest {
+
+    private final PointOfInterest observer;
+    private final double radius;
+    private final double targetHeight;
+    private final int mode;
+
+    /**
+     * @param longitude longitude of the observer
+     * @param latitude latitude of the observer
+     * @param observerHeight elevation of the observer in meters
+     * @param radius maximum distance in meters
+     * @param targetHeight height of the target (modes 2 and 3)
+     * @param mode type of generated viewshed
+     */
+    public ViewshedRequest(double longitude, double latitude, double observerHeight, double radius, double targetHeight, int mode) {
+        this.observer = new PointOfInterest(longitude, latitude, observerHeight);
+        this.radius = radius;
+        this.targetHeight = targetHeight;
+        this.mode = mode;
+    }
+
+    public PointOfInterest getObserver() {
+        return observer;
+    }
+
+    public double getLongitude() {
+        return observer.getLongitude();
+    }
+
+    public double getLatitude() {
+        return observer.getLatitude();
+    }
+
+    public double getObserverHeight() {
+        return observer.getHeight();
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    public double getTargetHeight() {
+        return targetHeight;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Requests are equal if they have the same observer (position and height), radius, target height and mode
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ViewshedRequest)) return false;
+        ViewshedRequest other = (ViewshedRequest) o;
+        return Double.compare(getLongitude(), other.getLongitude()) == 0
+                && Double.compare(getLatitude(), other.getLatitude()) == 0
+                && Double.compare(getObserverHeight(), other.getObserverHeight()) == 0
+                && Double.compare(radius, other.radius) == 0
+                && Double.compare(targetHeight, other.targetHeight) == 0
+                && mode == other.mode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getLongitude(), getLatitude(), getObserverHeight(), radius, targetHeight, mode);
+    }
+
+    @Override
+    public String toString() {
+        return "ViewshedRequest{" +
+                "lon=" + getLongitude() +
+                ", lat=" + getLatitude() +
+                ", height=" + getObserverHeight() +
+                ", radius=" + radius +
+                ", targetHeight=" + targetHeight +
+                ", mode=" + mode +
+                '}';
+    }
+}
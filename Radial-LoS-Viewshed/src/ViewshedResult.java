@@ -0,0 +1,271 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Result raster of a viewshed that many rays write concurrently. Every cell is merged with well-defined,
+ * order independent semantics, so the output does not depend on thread timing:
+ * <ul>
+ *     <li>modes 1 and 3: a cell is visible if any ray sees it</li>
+ *     <li>modes 0 and 2: a cell keeps the minimum height required to stay visible over all rays that reach it</li>
+ * </ul>
+ * The storage depends on the mode: visibility is a flat bitset (1 bit per cell) that is merged with an atomic or,
+ * heights are a flat short grid (2 bytes per cell, whole meters) merged with an atomic min.
+ * Cells are indexed row-major and colorized into ARGB only at export time.
+ */
+public class ViewshedResult {
+
+    /**
+     * Height of cells that no ray has reached
+     */
+    public static final int NO_HEIGHT = Short.MAX_VALUE;
+
+    // "VSHR"
+    private static final int BINARY_MAGIC = 0x56534852;
+    private static final int BINARY_VERSION = 1;
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle HEIGHTS = MethodHandles.arrayElementVarHandle(short[].class);
+
+    private final int width;
+    private final int height;
+    private final int mode;
+    private final double minLon;
+    private final double maxLon;
+    private final double minLat;
+    private final double maxLat;
+    private final long[] visibility;
+    private final short[] heights;
+
+    /**
+     * @param width width of the grid
+     * @param height height of the grid
+     * @param mode type of generated viewshed
+     * @param minLon western border of the grid
+     * @param maxLon eastern border of the grid
+     * @param minLat southern border of the grid
+     * @param maxLat northern border of the grid
+     */
+    public ViewshedResult(int width, int height, int mode, double minLon, double maxLon, double minLat, double maxLat) {
+        this.width = width;
+        this.height = height;
+        this.mode = mode;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        long cells = (long) width * height;
+        if (isHeightMode()) {
+            visibility = null;
+            heights = new short[(int) cells];
+            Arrays.fill(heights, (short) NO_HEIGHT);
+        } else {
+            // mode 3 marks the visible peripheral cells of the rays, so it shares the bitset of mode 1
+            visibility = new long[(int) ((cells + 63) >>> 6)];
+            heights = null;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    /**
+     * @return whether the cells hold heights (modes 0 and 2) rather than visibility flags (modes 1 and 3)
+     */
+    public boolean isHeightMode() {
+        return mode == 0 || mode == 2;
+    }
+
+    /**
+     * @return size of the cell storage in bytes
+     */
+    public long getSizeInBytes() {
+        return visibility != null ? 8L * visibility.length : 2L * heights.length;
+    }
+
+    /**
+     * Mark a cell as visible (modes 1 and 3)
+     */
+    public void markVisible(int x, int y) {
+        int index = y * width + x;
+        int word = index >>> 6;
+        long bit = 1L << index;
+        // only contend for the cache line when the bit is not set yet
+        if (((long) BITS.getOpaque(visibility, word) & bit) == 0) {
+            BITS.getAndBitwiseOr(visibility, word, bit);
+        }
+    }
+
+    public boolean isVisible(int x, int y) {
+        int index = y * width + x;
+        return (visibility[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Merge the height a ray requires to see a cell, keeping the minimum (modes 0 and 2).
+     * Heights are clamped to the short range.
+     */
+    public void recordHeight(int x, int y, int requiredHeight) {
+        short value = (short) Math.max(Short.MIN_VALUE, Math.min(NO_HEIGHT - 1, requiredHeight));
+        int index = y * width + x;
+        short current = (short) HEIGHTS.getOpaque(heights, index);
+        // only contend for the cache line when the height actually improves
+        while (value < current) {
+            if (HEIGHTS.weakCompareAndSet(heights, index, current, value)) return;
+            current = (short) HEIGHTS.getOpaque(heights, index);
+        }
+    }
+
+    /**
+     * @return the minimum height required to see the cell or {@link #NO_HEIGHT}
+     */
+    public int getRequiredHeight(int x, int y) {
+        return heights[y * width + x];
+    }
+
+    /**
+     * Merge another result of the same grid and mode into this one with the semantics of the rays: a cell is visible
+     * if it is visible in either result, and keeps the lower required height
+     * @param other result of the same grid and mode
+     */
+    public void merge(ViewshedResult other) {
+        if (other.width != width || other.height != height || other.isHeightMode() != isHeightMode()) {
+            throw new IllegalArgumentException("Cannot merge a " + other.width + "x" + other.height + " result of mode "
+                    + other.mode + " into a " + width + "x" + height + " result of mode " + mode);
+        }
+        if (visibility != null) {
+            for (int word = 0; word < visibility.length; word++) {
+                long bits = other.visibility[word];
+                if (bits != 0) BITS.getAndBitwiseOr(visibility, word, bits);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int value = other.heights[y * width + x];
+                    if (value != NO_HEIGHT) recordHeight(x, y, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of cells that any ray has written: visible cells (modes 1 and 3) or cells with a required height (modes 0 and 2)
+     */
+    public long countWrittenCells() {
+        long count = 0;
+        if (visibility != null) {
+            for (long word : visibility) count += Long.bitCount(word);
+        } else {
+            for (short value : heights) {
+                if (value != NO_HEIGHT) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write the result in a compact binary form: a header (magic number, version, mode, width, height, bounds) followed
+     * by the visibility bitset as big-endian longs (modes 1 and 3) or the required heights as big-endian shorts (modes 0 and 2)
+     * @param out destination of the result
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(BINARY_MAGIC);
+        out.writeByte(BINARY_VERSION);
+        out.writeByte(mode);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeDouble(minLon);
+        out.writeDouble(maxLon);
+        out.writeDouble(minLat);
+        out.writeDouble(maxLat);
+        // bulk copies in chunks instead of a stream call per cell
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int length = visibility != null ? visibility.length : heights.length;
+        int chunk = visibility != null ? buffer.capacity() / 8 : buffer.capacity() / 2;
+        for (int start = 0; start < length; start += chunk) {
+            int count = Math.min(chunk, length - start);
+            buffer.clear();
+            if (visibility != null) buffer.asLongBuffer().put(visibility, start, count);
+            else buffer.asShortBuffer().put(heights, start, count);
+            out.write(buffer.array(), 0, visibility != null ? 8 * count : 2 * count);
+        }
+    }
+
+    /**
+     * Read a result written by {@link #writeTo}
+     * @param in source of the result
+     * @return the result
+     */
+    public static ViewshedResult readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != BINARY_MAGIC) throw new IOException("Not a viewshed result");
+        int version = in.readByte();
+        if (version != BINARY_VERSION) throw new IOException("Unsupported viewshed result version: " + version);
+        int mode = in.readByte();
+        int width = in.readInt();
+        int height = in.readInt();
+        ViewshedResult result = new ViewshedResult(width, height, mode, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int length = result.visibility != null ? result.visibility.length : result.heights.length;
+        int chunk = result.visibility != null ? buffer.capacity() / 8 : buffer.capacity() / 2;
+        for (int start = 0; start < length; start += chunk) {
+            int count = Math.min(chunk, length - start);
+            if (result.visibility != null) {
+                in.readFully(buffer.array(), 0, 8 * count);
+                buffer.asLongBuffer().get(result.visibility, start, count);
+            } else {
+                in.readFully(buffer.array(), 0, 2 * count);
+                buffer.asShortBuffer().get(result.heights, start, count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Colorize a cell for export
+     * @param x column of the cell
+     * @param y row of the cell
+     * @param ru raster utils holding the height color map
+     * @return ARGB color of the cell
+     */
+    public int getArgb(int x, int y, RasterUtils ru) {
+        switch (mode) {
+            case 0:
+            case 2: {
+                int value = heights[y * width + x];
+                return value == NO_HEIGHT ? 0x00000000 : ru.getColor(value);
+            }
+            case 1:
+                return isVisible(x, y) ? 0xFFFF0000 : 0x00000000;
+            default:
+                return isVisible(x, y) ? 255 : 0x00000000;
+        }
+    }
+}
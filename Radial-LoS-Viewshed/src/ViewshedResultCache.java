@@ -0,0 +1,395 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Process-wide cache of viewshed results. Observers that fall on the same DEM cell of the same grid window share an
+ * entry, together with the observer height, radius, mode, target height and engine, so the cached viewshed of a cell
+ * is that of the first observer calculated in it. Results are kept deflated in their binary form
+ * ({@link ViewshedResult#writeTo}), which shrinks visibility results to a few bits per visible region edge.
+ * <p>
+ * Entries are evicted in least-recently-used order once their size exceeds the memory budget. If a spill directory is
+ * set, evicted entries move there and are evicted from it by the disk budget. Entries expire after their time to
+ * live, and all entries are dropped (together with the {@link DemTileCache}) when the files of the DEM directory change.
+ * <p>
+ * The budgets default to the system properties viewshed.resultCache.maxBytes (256 MiB), viewshed.resultCache.maxDiskBytes
+ * (4 GiB), the time to live to viewshed.resultCache.ttlSeconds (1 hour) and the spill directory to
+ * viewshed.resultCache.spillDirectory (no spilling if not set).
+ */
+public class ViewshedResultCache {
+
+    private static final ViewshedResultCache INSTANCE = new ViewshedResultCache(
+            Long.getLong("viewshed.resultCache.maxBytes", 1L << 28),
+            System.getProperty("viewshed.resultCache.spillDirectory") == null ? null
+                    : Paths.get(System.getProperty("viewshed.resultCache.spillDirectory")),
+            Long.getLong("viewshed.resultCache.maxDiskBytes", 1L << 32),
+            Long.getLong("viewshed.resultCache.ttlSeconds", 3600) * 1000);
+
+    // the DEM directory is checked for changes at most this often
+    private static final long DEM_CHECK_INTERVAL_MILLIS = 5000;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // spilled entries (without their data) in least-recently-used order
+    private final LinkedHashMap<String, Entry> spilled = new LinkedHashMap<>(16, 0.75f, true);
+    private final Path spillDirectory;
+    private long maxBytes;
+    private final long maxDiskBytes;
+    private final long ttlMillis;
+    private long currentBytes;
+    private long diskBytes;
+    private long demVersion;
+    private long demCheckedAt;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes memory budget in bytes
+     * @param spillDirectory directory of evicted entries, or null to drop them
+     * @param maxDiskBytes budget of the spill directory in bytes
+     * @param ttlMillis time to live of an entry in milliseconds
+     */
+    public ViewshedResultCache(long maxBytes, Path spillDirectory, long maxDiskBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.spillDirectory = spillDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = ttlMillis;
+        this.demVersion = getDemVersion();
+        this.demCheckedAt = System.currentTimeMillis();
+        if (spillDirectory != null) {
+            try {
+                Files.createDirectories(spillDirectory);
+                // spilled entries of an earlier process are not indexed
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory, "*.vsr")) {
+                    for (Path file : files) deleteQuietly(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static ViewshedResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the key of a viewshed
+     * @param window grid window of the observer
+     * @param su spatial utils georeferenced on the window
+     * @param request the observer and the parameters of the viewshed
+     * @param engine viewshed algorithm
+     * @return key of the viewshed
+     */
+    public static String getKey(GridWindow window, SpatialUtils su, ViewshedRequest request, ViewshedEngine engine) {
+        double[] xy = su.getXY(request.getLongitude(), request.getLatitude());
+        return window.getMinLon() + "," + window.getMaxLat() + "," + window.getWidth() + "x" + window.getHeight()
+                + "|" + (int) Math.floor(xy[0]) + "," + (int) Math.floor(xy[1])
+                + "|" + request.getObserverHeight() + "|" + request.getRadius() + "|" + request.getMode()
+                + "|" + request.getTargetHeight() + "|" + engine.getName();
+    }
+
+    /**
+     * Get a cached result
+     * @param key key of the viewshed, see {@link #getKey}
+     * @return the result or null if it is not cached
+     */
+    public ViewshedResult get(String key) {
+        byte[] data;
+        synchronized (entries) {
+            checkDem();
+            long now = System.currentTimeMillis();
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.created > ttlMillis) {
+                entries.remove(key);
+                currentBytes -= entry.data.length;
+                entry = null;
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+                data = entry.data;
+            } else {
+                data = unspill(key, now);
+                if (data == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                diskHits.incrementAndGet();
+            }
+        }
+        return decode(data);
+    }
+
+    /**
+     * Cache a result
+     * @param key key of the viewshed, see {@link #getKey}
+     * @param result the result
+     */
+    public void put(String key, ViewshedResult result) {
+        byte[] data = encode(result);
+        synchronized (entries) {
+            checkDem();
+            Entry previous = entries.put(key, new Entry(data, System.currentTimeMillis()));
+            if (previous != null) currentBytes -= previous.data.length;
+            currentBytes += data.length;
+            evict(key);
+        }
+    }
+
+    /**
+     * Move a spilled entry back into memory. Must hold the lock.
+     * @return the data of the entry or null if it is not spilled (or has expired)
+     */
+    private byte[] unspill(String key, long now) {
+        Entry entry = spilled.remove(key);
+        if (entry == null) return null;
+        diskBytes -= entry.size;
+        Path file = getSpillFile(key);
+        try {
+            if (now - entry.created > ttlMillis) return null;
+            byte[] data = Files.readAllBytes(file);
+            entries.put(key, new Entry(data, entry.created));
+            currentBytes += data.length;
+            evict(key);
+            return data;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits in its budget, spilling them if there is a spill
+     * directory. Must hold the lock.
+     * @param keep key of the entry that has just been inserted
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            if (next.getKey().equals(keep)) continue;
+            Entry entry = next.getValue();
+            currentBytes -= entry.data.length;
+            iterator.remove();
+            evictions.incrementAndGet();
+            if (spillDirectory != null) spill(next.getKey(), entry);
+        }
+    }
+
+    /**
+     * Write an evicted entry to the spill directory. Must hold the lock.
+     */
+    private void spill(String key, Entry entry) {
+        try (OutputStream out = Files.newOutputStream(getSpillFile(key))) {
+            out.write(entry.data);
+        } catch (IOException e) {
+            // the entry is dropped instead
+            return;
+        }
+        spilled.put(key, new Entry(entry.data.length, entry.created));
+        diskBytes += entry.data.length;
+        Iterator<Map.Entry<String, Entry>> iterator = spilled.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> oldest = iterator.next();
+            diskBytes -= oldest.getValue().size;
+            iterator.remove();
+            deleteQuietly(getSpillFile(oldest.getKey()));
+        }
+    }
+
+    private Path getSpillFile(String key) {
+        // a collision would overwrite the spilled entry of another key and hand out its result, so the name is a digest
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder name = new StringBuilder(2 * digest.length + 4);
+        for (byte b : digest) name.append(String.format("%02x", b & 0xFF));
+        return spillDirectory.resolve(name.append(".vsr").toString());
+    }
+
+    private static long hash(String key) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++) hash = 31 * hash + key.charAt(i);
+        return hash;
+    }
+
+    /**
+     * Drop all entries if the DEM directory has changed since the last check. Must hold the lock.
+     */
+    private void checkDem() {
+        long now = System.currentTimeMillis();
+        if (now - demCheckedAt < DEM_CHECK_INTERVAL_MILLIS) return;
+        demCheckedAt = now;
+        long version = getDemVersion();
+        if (version == demVersion) return;
+        demVersion = version;
+        System.out.println("DEM directory changed, clearing the result and tile caches");
+        clearLocked();
+        DemTileCache.getInstance().clear();
+    }
+
+    /**
+     * @return fingerprint of the names, sizes and modification times of the DEM files
+     */
+    private static long getDemVersion() {
+        long version = 17;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DemMosaic.getDemDirectory())) {
+            for (Path file : files) {
+                // the order of the directory listing does not matter
+                version += hash(file.getFileName().toString()) * 31 + Files.size(file) * 17 + Files.getLastModifiedTime(file).toMillis();
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+        return version;
+    }
+
+    private static byte[] encode(ViewshedResult result) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater), 1 << 16))) {
+            result.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ViewshedResult decode(byte[] data) {
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data), inflater, 1 << 16)) {
+            return ViewshedResult.readFrom(new DataInputStream(new BufferedInputStream(in, 1 << 16)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // left for the next eviction
+        }
+    }
+
+    /**
+     * Remove all cached results from memory and from the spill directory
+     */
+    public void clear() {
+        synchronized (entries) {
+            clearLocked();
+        }
+    }
+
+    private void clearLocked() {
+        entries.clear();
+        currentBytes = 0;
+        for (String key : spilled.keySet()) deleteQuietly(getSpillFile(key));
+        spilled.clear();
+        diskBytes = 0;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        synchronized (entries) {
+            this.maxBytes = maxBytes;
+            evict(null);
+        }
+    }
+
+    public long getCurrentBytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    public long getDiskBytes() {
+        synchronized (entries) {
+            return diskBytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ViewshedResultCache{" +
+                "hits=" + getHits() +
+                ", diskHits=" + getDiskHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", bytes=" + getCurrentBytes() +
+                ", diskBytes=" + getDiskBytes() +
+                '}';
+    }
+
+    /**
+     * Encoded result in memory (data) or on disk (size), with its creation time
+     */
+    private static class Entry {
+
+        private final byte[] data;
+        private final long size;
+        private final long created;
+
+        Entry(byte[] data, long created) {
+            this.data = data;
+            this.size = data.length;
+            this.created = created;
+        }
+
+        Entry(long size, long created) {
+            this.data = null;
+            this.size = size;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP viewshed service on the JDK's own server, so a warm JVM with a warm {@link DemTileCache} and
+ * {@link ViewshedResultCache} answers requests without startup, JIT warmup or DEM loading.
+ * <p>
+ * {@code GET /viewshed?lon=23.5&lat=38.5&height=600&radius=20000&mode=1&target=0&format=png} returns the png of the
+ * viewshed; {@code format=pgw} returns its world file and {@code format=bin} the compact binary result of
+ * {@link ViewshedResult#writeTo}; {@code format=wkt}, {@code format=geojson} and {@code format=wkb} return the polygons of
+ * the visible areas ({@link ViewshedVectorizer}), simplified by the optional {@code tolerance} in cells; in modes 0 and 2
+ * the optional {@code maxheight} limits the polygons to the cells that need at most that height to be seen.
+ * {@code GET /stats} returns the counters of the service.
+ * <p>
+ * All viewsheds run on one shared fork-join pool. At most {@code maxPending} distinct viewsheds are running or waiting
+ * for the pool; further requests are rejected with 503 instead of queueing without bound. Requests for a viewshed that
+ * is already being calculated are coalesced: they wait for the same result instead of calculating it again.
+ * Requests never block a thread of the HTTP server, the response is written once its viewshed is done.
+ */
+public class ViewshedServer {
+
+    private static final int TILE_SIZE = 3601;
+    private static final double MAX_RADIUS = 200000;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ForkJoinPool pool;
+    private final ViewshedEngine engine;
+    private final RasterUtils ru = new RasterUtils(TILE_SIZE);
+    private final Semaphore admission;
+    private final Map<ViewshedRequest, CompletableFuture<ViewshedResult>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong calculated = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param port port to listen on
+     * @param numThreads threads of the compute pool
+     * @param maxPending maximum number of distinct viewsheds running or waiting for the pool
+     * @param engine viewshed algorithm
+     */
+    public ViewshedServer(int port, int numThreads, int maxPending, ViewshedEngine engine) throws IOException {
+        this.pool = new ForkJoinPool(numThreads);
+        this.engine = engine;
+        this.admission = new Semaphore(maxPending);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        // the handlers only parse requests and hand them over, so a few threads are enough
+        this.handlers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        server.setExecutor(handlers);
+        server.createContext("/viewshed", this::handleViewshed);
+        server.createContext("/stats", this::handleStats);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int maxPending = args.length > 2 ? Integer.parseInt(args[2]) : 4 * numThreads;
+        ViewshedServer server = new ViewshedServer(port, numThreads, maxPending, new R3Engine());
+        server.start();
+        System.out.println("Viewshed service listening on port " + port + " | Threads: " + numThreads + " | Max pending: " + maxPending);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests and shut the pools down
+     * @param delay seconds to wait for running exchanges
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        handlers.shutdown();
+        pool.shutdown();
+    }
+
+    private void handleViewshed(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        ViewshedRequest request;
+        String format;
+        double tolerance;
+        int maxHeight;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Only GET is supported");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            request = parseRequest(parameters);
+            format = parameters.getOrDefault("format", "png");
+            if (!format.equals("png") && !format.equals("pgw") && !format.equals("bin") && !ViewshedVectorizer.isFormat(format)) {
+                throw new IllegalArgumentException("Unknown format: " + format);
+            }
+            tolerance = getDouble(parameters, "tolerance", 0);
+            if (tolerance < 0) throw new IllegalArgumentException("tolerance must not be negative");
+            maxHeight = (int) getDouble(parameters, "maxheight", ViewshedResult.NO_HEIGHT - 1);
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+
+        CompletableFuture<ViewshedResult> future = submit(request);
+        if (future == null) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendText(exchange, 503, "Too many pending viewsheds");
+            return;
+        }
+        String responseFormat = format;
+        double responseTolerance = tolerance;
+        int responseMaxHeight = maxHeight;
+        future.whenCompleteAsync((result, error) -> {
+            try {
+                if (error != null) {
+                    failed.incrementAndGet();
+                    sendText(exchange, 500, String.valueOf(error.getCause() != null ? error.getCause() : error));
+                } else {
+                    sendResult(exchange, result, responseFormat, responseTolerance, responseMaxHeight);
+                }
+            } catch (IOException e) {
+                // the client went away
+            } catch (RuntimeException e) {
+                // e.g. a failure while encoding the result, answer it unless the 200 has already been sent
+                failed.incrementAndGet();
+                if (exchange.getResponseCode() == -1) {
+                    try {
+                        sendText(exchange, 500, e.toString());
+                    } catch (IOException ignored) {
+                        // the client went away
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }, pool);
+    }
+
+    /**
+     * Get the result of a viewshed, joining the calculation of an identical request that is still in flight
+     * @return the future result, or null if the service is saturated
+     */
+    private CompletableFuture<ViewshedResult> submit(ViewshedRequest request) {
+        CompletableFuture<ViewshedResult> future = inFlight.get(request);
+        if (future != null) {
+            coalesced.incrementAndGet();
+            return future;
+        }
+        if (!admission.tryAcquire()) return null;
+        CompletableFuture<ViewshedResult> created = new CompletableFuture<>();
+        future = inFlight.putIfAbsent(request, created);
+        if (future != null) {
+            // another thread submitted the same viewshed in the meantime
+            admission.release();
+            coalesced.incrementAndGet();
+            return future;
+        }
+        pool.execute(() -> {
+            try {
+                created.complete(calculate(request));
+                calculated.incrementAndGet();
+            } catch (Throwable t) {
+                created.completeExceptionally(t);
+            } finally {
+                inFlight.remove(request, created);
+                admission.release();
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Calculate a viewshed, on a worker of the compute pool
+     */
+    private ViewshedResult calculate(ViewshedRequest request) {
+        SpatialUtils su = new SpatialUtils(ru);
+        GridWindow window = GridWindow.forObserver(su, request.getLongitude(), request.getLatitude(), request.getRadius(), TILE_SIZE);
+        window.applyTo(su);
+        String key = ViewshedResultCache.getKey(window, su, request, engine);
+        ViewshedResult cached = ViewshedResultCache.getInstance().get(key);
+        if (cached != null) return cached;
+
+        su.initializeResult(request.getMode());
+        ObserverGeometry geometry = new ObserverGeometry(su, request.getObserver());
+        // the tiles come from the shared DemTileCache, so only the first request of an area reads them from disk
+        DemMosaic dem = window.createMosaic();
+        engine.calculate(su, geometry, dem, request.getRadius(), request.getTargetHeight(), request.getMode(),
+                pool.getParallelism(), null);
+        ViewshedResultCache.getInstance().put(key, su.getResult());
+        return su.getResult();
+    }
+
+    private void sendResult(HttpExchange exchange, ViewshedResult result, String format, double tolerance, int maxHeight) throws IOException {
+        switch (format) {
+            case "pgw":
+                sendText(exchange, 200, ru.getWorldFile(result.getWidth(), result.getHeight(), result.getMinLon(),
+                        result.getMaxLon(), result.getMinLat(), result.getMaxLat()));
+                return;
+            case "bin":
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, 0);
+                try (DataOutputStream out = new DataOutputStream(exchange.getResponseBody())) {
+                    result.writeTo(out);
+                }
+                return;
+            case ViewshedVectorizer.FORMAT_WKT:
+            case ViewshedVectorizer.FORMAT_GEOJSON:
+            case ViewshedVectorizer.FORMAT_WKB:
+                exchange.getResponseHeaders().set("Content-Type", format.equals(ViewshedVectorizer.FORMAT_WKT) ? "text/plain; charset=utf-8"
+                        : format.equals(ViewshedVectorizer.FORMAT_GEOJSON) ? "application/geo+json" : "application/octet-stream");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    new ViewshedVectorizer(result, maxHeight, tolerance).write(out, format);
+                }
+                return;
+            default:
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    ru.resultToPng(result, out);
+                }
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        sendText(exchange, 200, "requests=" + requests.get()
+                + "\ncalculated=" + calculated.get()
+                + "\ncoalesced=" + coalesced.get()
+                + "\nrejected=" + rejected.get()
+                + "\nfailed=" + failed.get()
+                + "\nin_flight=" + inFlight.size()
+                + "\n" + DemTileCache.getInstance()
+                + "\n" + ViewshedResultCache.getInstance() + "\n");
+    }
+
+    /**
+     * @return the request described by the query parameters
+     * @throws IllegalArgumentException if a parameter is missing or out of range
+     */
+    static ViewshedRequest parseRequest(Map<String, String> parameters) {
+        double longitude = getDouble(parameters, "lon", Double.NaN);
+        double latitude = getDouble(parameters, "lat", Double.NaN);
+        double height = getDouble(parameters, "height", 0);
+        double radius = getDouble(parameters, "radius", 10000);
+        double targetHeight = getDouble(parameters, "target", 0);
+        int mode = (int) getDouble(parameters, "mode", 1);
+        if (!(longitude >= -180 && longitude < 180)) throw new IllegalArgumentException("lon must be within [-180, 180)");
+        if (!(latitude >= -90 && latitude < 90)) throw new IllegalArgumentException("lat must be within [-90, 90)");
+        if (!(radius > 0 && radius <= MAX_RADIUS)) throw new IllegalArgumentException("radius must be within (0, " + MAX_RADIUS + "]");
+        if (mode < 0 || mode > 3) throw new IllegalArgumentException("mode must be 0, 1, 2 or 3");
+        return new ViewshedRequest(longitude, latitude, height, radius, targetHeight, mode);
+    }
+
+    private static double getDouble(Map<String, String> parameters, String name, double defaultValue) {
+        String value = parameters.get(name);
+        if (value == null) {
+            if (Double.isNaN(defaultValue)) throw new IllegalArgumentException("Missing parameter: " + name);
+            return defaultValue;
+        }
+        try {
+            double number = Double.parseDouble(value);
+            if (!Double.isFinite(number)) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) return parameters;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
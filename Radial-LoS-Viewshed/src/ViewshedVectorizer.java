@@ -0,0 +1,761 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Vectorizes a viewshed result into the polygons of its visible areas, straight from the cells of the result.
+ * <p>
+ * The boundaries between visible and hidden cells are traced along the cell edges, marching-squares style, in
+ * horizontal strips of {@link #STRIP_ROWS} rows in parallel. Boundaries that cross the seams between strips are
+ * left as open chains and stitched into rings afterwards. Visible cells that only touch diagonally belong to different
+ * polygons (4-connectivity). Every ring is split at the corners where it touches itself, so all rings are simple.
+ * Holes are assigned to their polygon through the runs of visible cells of the rows, without a point-in-polygon test.
+ * Only the vertices of the boundaries are held in memory, never an object per cell.
+ * <p>
+ * Polygons are written as one WKT polygon per line, as a GeoJSON feature collection with one feature per polygon
+ * (property {@code cells}: the number of cells of the polygon), or as a single little-endian WKB multipolygon. Outer
+ * rings are counter-clockwise and holes clockwise (RFC 7946). The output is encoded in parallel batches and written
+ * in order while later batches are still being encoded.
+ */
+public class ViewshedVectorizer {
+
+    public static final String FORMAT_WKT = "wkt";
+    public static final String FORMAT_GEOJSON = "geojson";
+    public static final String FORMAT_WKB = "wkb";
+
+    private static final int STRIP_ROWS = 64;
+    // vertices per encoded batch of polygons
+    private static final int BATCH_VERTICES = 1 << 16;
+    // directions of the edges: east, north (up the raster), west, south
+    private static final int EAST = 0;
+    private static final int NORTH = 1;
+    private static final int WEST = 2;
+    private static final int SOUTH = 3;
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, -1, 0, 1};
+    // marks a vertex where the boundary can touch itself
+    private static final long SADDLE = Long.MIN_VALUE;
+
+    private final ViewshedResult result;
+    private final int width;
+    private final int height;
+    private final boolean heights;
+    private final int maxRequiredHeight;
+    private final double tolerance;
+
+    /**
+     * Vectorize the visible cells (modes 1 and 3) or the cells with a required height (modes 0 and 2) without simplification
+     */
+    public ViewshedVectorizer(ViewshedResult result) {
+        this(result, ViewshedResult.NO_HEIGHT - 1, 0);
+    }
+
+    /**
+     * @param result result to vectorize
+     * @param maxRequiredHeight highest required height of the cells of the polygons in modes 0 and 2, ignored in modes 1 and 3
+     * @param tolerance Douglas-Peucker tolerance of the simplification in cells, or 0 for the exact cell boundaries.
+     *                  Polygons and holes narrower than the tolerance may disappear.
+     */
+    public ViewshedVectorizer(ViewshedResult result, int maxRequiredHeight, double tolerance) {
+        this.result = result;
+        this.width = result.getWidth();
+        this.height = result.getHeight();
+        this.heights = result.isHeightMode();
+        this.maxRequiredHeight = maxRequiredHeight;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return whether the format is {@link #FORMAT_WKT}, {@link #FORMAT_GEOJSON} or {@link #FORMAT_WKB}
+     */
+    public static boolean isFormat(String format) {
+        return FORMAT_WKT.equals(format) || FORMAT_GEOJSON.equals(format) || FORMAT_WKB.equals(format);
+    }
+
+    /**
+     * Vectorize the result into a file
+     * @param file destination file
+     * @param format {@link #FORMAT_WKT}, {@link #FORMAT_GEOJSON} or {@link #FORMAT_WKB}
+     * @return number of polygons written
+     */
+    public int write(Path file, String format) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            return write(out, format);
+        }
+    }
+
+    /**
+     * Vectorize the result into a stream
+     * @param stream destination of the polygons, which is flushed but not closed
+     * @param format {@link #FORMAT_WKT}, {@link #FORMAT_GEOJSON} or {@link #FORMAT_WKB}
+     * @return number of polygons written
+     */
+    public int write(OutputStream stream, String format) throws IOException {
+        if (!isFormat(format)) throw new IllegalArgumentException("Unknown vector format: " + format);
+        List<Polygon> polygons = getPolygons();
+
+        double[] longitudes = new double[width + 1];
+        double[] latitudes = new double[height + 1];
+        double lonStep = (result.getMaxLon() - result.getMinLon()) / width;
+        double latStep = (result.getMaxLat() - result.getMinLat()) / height;
+        for (int x = 0; x <= width; x++) longitudes[x] = result.getMinLon() + x * lonStep;
+        for (int y = 0; y <= height; y++) latitudes[y] = result.getMaxLat() - y * latStep;
+
+        // batches of whole polygons with about the same number of vertices
+        List<Integer> batchStarts = new ArrayList<>();
+        long vertices = BATCH_VERTICES;
+        for (int i = 0; i < polygons.size(); i++) {
+            if (vertices >= BATCH_VERTICES) {
+                batchStarts.add(i);
+                vertices = 0;
+            }
+            vertices += polygons.get(i).getVertexCount();
+        }
+        batchStarts.add(polygons.size());
+
+        OutputStream out = new BufferedOutputStream(stream, 1 << 16);
+        if (format.equals(FORMAT_GEOJSON)) {
+            out.write("{\"type\":\"FeatureCollection\",\"features\":[\n".getBytes(StandardCharsets.US_ASCII));
+        } else if (format.equals(FORMAT_WKB)) {
+            ByteBuffer header = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 1).putInt(6).putInt(polygons.size());     // little-endian multipolygon
+            out.write(header.array());
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int batches = batchStarts.size() - 1;
+        int window = 2 * pool.getParallelism() + 1;
+        ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        for (int batch = 0; batch < batches; batch++) {
+            while (submitted < batches && submitted < batch + window) {
+                int start = batchStarts.get(submitted);
+                int end = batchStarts.get(++submitted);
+                pending.add(pool.submit(() -> encode(polygons, start, end, format, longitudes, latitudes)));
+            }
+            out.write(pending.remove().join());
+        }
+        if (format.equals(FORMAT_GEOJSON)) out.write("\n]}\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return polygons.size();
+    }
+
+    /**
+     * Trace the boundaries of the strips in parallel, stitch them into rings and group the rings into polygons
+     * @return the polygons, from north to south by their first boundary
+     */
+    private List<Polygon> getPolygons() {
+        int stripCount = (height + STRIP_ROWS - 1) / STRIP_ROWS;
+        List<ForkJoinTask<Strip>> tasks = new ArrayList<>(stripCount);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        for (int i = 0; i < stripCount; i++) {
+            int start = i * STRIP_ROWS;
+            tasks.add(pool.submit(() -> traceStrip(start, Math.min(height, start + STRIP_ROWS))));
+        }
+        List<Piece> pieces = new ArrayList<>();
+        List<int[]> unions = new ArrayList<>();
+        for (ForkJoinTask<Strip> task : tasks) {
+            Strip strip = task.join();
+            int base = pieces.size();
+            pieces.addAll(strip.pieces);
+            for (int i = 0; i < strip.unions.size(); i += 2) {
+                unions.add(new int[]{base + (int) strip.unions.get(i), base + (int) strip.unions.get(i + 1)});
+            }
+        }
+
+        // stitch the open chains at the seams: every chain leaves its strip on the first edge of the next one
+        int[] parent = new int[pieces.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        for (int[] union : unions) union(parent, union[0], union[1]);
+        Map<Long, Integer> starts = new HashMap<>();
+        for (int i = 0; i < pieces.size(); i++) {
+            if (!pieces.get(i).closed) starts.put(pieces.get(i).startKey, i);
+        }
+        int[] next = new int[pieces.size()];
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            if (piece.closed) continue;
+            Integer successor = starts.get(piece.exitKey);
+            if (successor == null) throw new IllegalStateException("Boundary chain without a continuation at the seam");
+            next[i] = successor;
+            union(parent, i, successor);
+        }
+
+        Map<Integer, PolygonBuilder> builders = new LinkedHashMap<>();
+        boolean[] used = new boolean[pieces.size()];
+        for (int i = 0; i < pieces.size(); i++) {
+            if (used[i]) continue;
+            LongList ring = new LongList();
+            int piece = i;
+            do {
+                used[piece] = true;
+                LongList vertices = pieces.get(piece).vertices;
+                // consecutive chains share the vertex on the seam
+                for (int v = ring.size() > 0 ? 1 : 0; v < vertices.size(); v++) ring.add(vertices.get(v));
+                piece = pieces.get(piece).closed ? i : next[piece];
+            } while (piece != i);
+            if (!pieces.get(i).closed) ring.removeLast();   // the last chain ends on the first vertex
+            builders.computeIfAbsent(find(parent, i), root -> new PolygonBuilder()).addRing(ring);
+        }
+
+        List<Polygon> polygons = new ArrayList<>(builders.size());
+        for (PolygonBuilder builder : builders.values()) {
+            Polygon polygon = builder.build();
+            if (polygon != null) polygons.add(polygon);
+        }
+        return polygons;
+    }
+
+    /**
+     * Trace the boundary edges of a strip of rows. The strip owns the vertical edges of its rows and the horizontal
+     * edges on the top border of its rows (the last strip also those on the bottom border of the result).
+     * @param start first row of the strip
+     * @param end row after the strip
+     */
+    private Strip traceStrip(int start, int end) {
+        StripTracer tracer = new StripTracer(start, end);
+        // chains entering the strip across a seam
+        for (int y : new int[]{start, end}) {
+            for (int x = 0; x <= width; x++) {
+                for (int d = 0; d < 4; d++) {
+                    if (tracer.owns(x, y, d) && hasEdge(x, y, d) && !tracer.isVisited(x, y, d) && !tracer.ownsPredecessor(x, y, d)) {
+                        tracer.trace(x, y, d);
+                    }
+                }
+            }
+        }
+        // rings within the strip, found on the cached cells of the current row and the row above
+        boolean[] above = new boolean[width];
+        boolean[] row = new boolean[width];
+        if (start > 0) getRow(start - 1, above);
+        for (int y = start; y <= end; y++) {
+            if (y == end && end != height) break;
+            if (y < height) getRow(y, row);
+            else Arrays.fill(row, false);
+            for (int x = 0; x < width; x++) {
+                if (above[x] == row[x]) continue;
+                if (above[x] && !tracer.isVisited(x, y, EAST)) tracer.trace(x, y, EAST);
+                else if (row[x] && !tracer.isVisited(x + 1, y, WEST)) tracer.trace(x + 1, y, WEST);
+            }
+            if (y < end) {
+                for (int x = 0; x <= width; x++) {
+                    boolean left = x > 0 && row[x - 1];
+                    boolean right = x < width && row[x];
+                    if (left == right) continue;
+                    if (right && !tracer.isVisited(x, y, SOUTH)) tracer.trace(x, y, SOUTH);
+                    else if (left && !tracer.isVisited(x, y + 1, NORTH)) tracer.trace(x, y + 1, NORTH);
+                }
+            }
+            boolean[] swap = above;
+            above = row;
+            row = swap;
+        }
+        // the first and the last edge of a run of visible cells bound the same polygon
+        for (int y = start; y < end; y++) {
+            getRow(y, row);
+            int runStart = -1;
+            for (int x = 0; x <= width; x++) {
+                boolean left = x > 0 && row[x - 1];
+                boolean right = x < width && row[x];
+                if (right && !left) {
+                    runStart = tracer.getVerticalPiece(x, y);
+                } else if (left && !right) {
+                    int runEnd = tracer.getVerticalPiece(x, y);
+                    if (runEnd != runStart) {
+                        tracer.strip.unions.add(runStart);
+                        tracer.strip.unions.add(runEnd);
+                    }
+                }
+            }
+        }
+        return tracer.strip;
+    }
+
+    /**
+     * @param y row of the result
+     * @param row destination of whether the cells of the row belong to the polygons
+     */
+    private void getRow(int y, boolean[] row) {
+        for (int x = 0; x < width; x++) {
+            row[x] = heights ? result.getRequiredHeight(x, y) <= maxRequiredHeight : result.isVisible(x, y);
+        }
+    }
+
+    /**
+     * @return whether a cell belongs to the polygons; cells outside the result do not
+     */
+    private boolean isInside(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return false;
+        return heights ? result.getRequiredHeight(x, y) <= maxRequiredHeight : result.isVisible(x, y);
+    }
+
+    /**
+     * Whether a boundary edge leaves a vertex in a direction. Edges run with the polygon on their left on the map.
+     * @param x column of the vertex (the north-western corner of the cell with the same coordinates)
+     * @param y row of the vertex
+     * @param direction direction of the edge
+     */
+    private boolean hasEdge(int x, int y, int direction) {
+        switch (direction) {
+            case EAST: return isInside(x, y - 1) && !isInside(x, y);
+            case NORTH: return isInside(x - 1, y - 1) && !isInside(x, y - 1);
+            case WEST: return isInside(x - 1, y) && !isInside(x - 1, y - 1);
+            default: return isInside(x, y) && !isInside(x - 1, y);
+        }
+    }
+
+    /**
+     * Direction in which the boundary continues at a vertex. Left turns come first, so at a vertex where two visible
+     * cells touch diagonally the boundary turns around the corner of each cell and the cells stay apart.
+     * @param direction direction of the edge that arrives at the vertex
+     */
+    private int getNextDirection(int x, int y, int direction) {
+        int left = (direction + 1) & 3;
+        if (hasEdge(x, y, left)) return left;
+        if (hasEdge(x, y, direction)) return direction;
+        int right = (direction + 3) & 3;
+        if (hasEdge(x, y, right)) return right;
+        throw new IllegalStateException("Boundary ends at vertex " + x + ", " + y);
+    }
+
+    /**
+     * @return whether two visible cells touch only diagonally at a vertex
+     */
+    private boolean isSaddle(int x, int y) {
+        boolean northWest = isInside(x - 1, y - 1);
+        boolean northEast = isInside(x, y - 1);
+        return northWest == isInside(x, y) && northEast == isInside(x - 1, y) && northWest != northEast;
+    }
+
+    private long getVertex(int x, int y) {
+        long vertex = ((long) y << 32) | x;
+        return isSaddle(x, y) ? vertex | SADDLE : vertex;
+    }
+
+    private static int getX(long vertex) {
+        return (int) vertex;
+    }
+
+    private static int getY(long vertex) {
+        return (int) ((vertex & ~SADDLE) >>> 32);
+    }
+
+    private static long getEdgeKey(int x, int y, int direction) {
+        return ((long) y << 34) | ((long) x << 2) | direction;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // the lower root keeps the polygons in the order of their first ring
+        if (rootA < rootB) parent[rootB] = rootA;
+        else parent[rootA] = rootB;
+    }
+
+    /**
+     * Encode a batch of polygons
+     * @param start index of the first polygon of the batch
+     * @param end index after the last polygon of the batch
+     */
+    private static byte[] encode(List<Polygon> polygons, int start, int end, String format, double[] longitudes, double[] latitudes) {
+        if (format.equals(FORMAT_WKB)) {
+            int size = 0;
+            for (int i = start; i < end; i++) size += 9 + 4 * polygons.get(i).rings.size() + 16 * polygons.get(i).getVertexCount();
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = start; i < end; i++) {
+                List<long[]> rings = polygons.get(i).rings;
+                buffer.put((byte) 1).putInt(3).putInt(rings.size());
+                for (long[] ring : rings) {
+                    buffer.putInt(ring.length + 1);
+                    for (int v = 0; v <= ring.length; v++) {
+                        long vertex = ring[v % ring.length];
+                        buffer.putDouble(longitudes[getX(vertex)]).putDouble(latitudes[getY(vertex)]);
+                    }
+                }
+            }
+            return buffer.array();
+        }
+        boolean json = format.equals(FORMAT_GEOJSON);
+        StringBuilder text = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            Polygon polygon = polygons.get(i);
+            if (json) {
+                if (i > 0) text.append(",\n");
+                text.append("{\"type\":\"Feature\",\"properties\":{\"cells\":").append(polygon.cells)
+                        .append("},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[");
+            } else {
+                text.append("POLYGON (");
+            }
+            for (int r = 0; r < polygon.rings.size(); r++) {
+                long[] ring = polygon.rings.get(r);
+                if (r > 0) text.append(json ? "," : ", ");
+                text.append(json ? "[" : "(");
+                for (int v = 0; v <= ring.length; v++) {
+                    long vertex = ring[v % ring.length];
+                    if (json) {
+                        if (v > 0) text.append(',');
+                        text.append('[').append(longitudes[getX(vertex)]).append(',').append(latitudes[getY(vertex)]).append(']');
+                    } else {
+                        if (v > 0) text.append(", ");
+                        text.append(longitudes[getX(vertex)]).append(' ').append(latitudes[getY(vertex)]);
+                    }
+                }
+                text.append(json ? "]" : ")");
+            }
+            text.append(json ? "]}}" : ")\n");
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Traces the boundaries of one strip
+     */
+    private class StripTracer {
+
+        private final int start;
+        private final int end;
+        private final Strip strip = new Strip();
+        private final BitSet horizontalVisited;
+        private final BitSet verticalVisited;
+        // piece of every vertical edge of the strip, for the runs of visible cells
+        private final int[] verticalPieces;
+
+        StripTracer(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.horizontalVisited = new BitSet((end - start + 1) * width);
+            this.verticalVisited = new BitSet((end - start) * (width + 1));
+            this.verticalPieces = new int[(end - start) * (width + 1)];
+        }
+
+        boolean owns(int x, int y, int direction) {
+            if (direction == EAST || direction == WEST) return y >= start && (y < end || y == height);
+            int row = direction == NORTH ? y - 1 : y;
+            return row >= start && row < end;
+        }
+
+        /**
+         * @return whether the edge that the boundary arrives on at the start of an edge belongs to the strip
+         */
+        boolean ownsPredecessor(int x, int y, int direction) {
+            for (int d = 0; d < 4; d++) {
+                int fromX = x - DX[d];
+                int fromY = y - DY[d];
+                if (hasEdge(fromX, fromY, d) && getNextDirection(x, y, d) == direction) return owns(fromX, fromY, d);
+            }
+            throw new IllegalStateException("Boundary starts at vertex " + x + ", " + y);
+        }
+
+        boolean isVisited(int x, int y, int direction) {
+            switch (direction) {
+                case EAST: return horizontalVisited.get((y - start) * width + x);
+                case WEST: return horizontalVisited.get((y - start) * width + x - 1);
+                case NORTH: return verticalVisited.get((y - 1 - start) * (width + 1) + x);
+                default: return verticalVisited.get((y - start) * (width + 1) + x);
+            }
+        }
+
+        int getVerticalPiece(int x, int row) {
+            return verticalPieces[(row - start) * (width + 1) + x];
+        }
+
+        /**
+         * Follow the boundary from an edge until it leaves the strip or returns to the edge
+         */
+        void trace(int startX, int startY, int startDirection) {
+            int id = strip.pieces.size();
+            Piece piece = new Piece();
+            piece.vertices.add(getVertex(startX, startY));
+            int x = startX;
+            int y = startY;
+            int direction = startDirection;
+            while (true) {
+                switch (direction) {
+                    case EAST: horizontalVisited.set((y - start) * width + x); break;
+                    case WEST: horizontalVisited.set((y - start) * width + x - 1); break;
+                    case NORTH: {
+                        int index = (y - 1 - start) * (width + 1) + x;
+                        verticalVisited.set(index);
+                        verticalPieces[index] = id;
+                        break;
+                    }
+                    default: {
+                        int index = (y - start) * (width + 1) + x;
+                        verticalVisited.set(index);
+                        verticalPieces[index] = id;
+                    }
+                }
+                x += DX[direction];
+                y += DY[direction];
+                int next = getNextDirection(x, y, direction);
+                if (x == startX && y == startY && next == startDirection) {
+                    piece.closed = true;
+                    break;
+                }
+                if (!owns(x, y, next)) {
+                    piece.vertices.add(getVertex(x, y));
+                    piece.startKey = getEdgeKey(startX, startY, startDirection);
+                    piece.exitKey = getEdgeKey(x, y, next);
+                    break;
+                }
+                if (next != direction) piece.vertices.add(getVertex(x, y));
+                direction = next;
+            }
+            strip.pieces.add(piece);
+        }
+    }
+
+    /**
+     * Boundaries traced in a strip, and the pairs of pieces (strip-local indices) that bound the same polygon
+     */
+    private static class Strip {
+
+        private final List<Piece> pieces = new ArrayList<>();
+        private final LongList unions = new LongList();
+    }
+
+    /**
+     * Closed ring, or chain of a ring from the seam it enters the strip at to the seam it leaves at
+     */
+    private static class Piece {
+
+        private final LongList vertices = new LongList();
+        private boolean closed;
+        private long startKey;
+        private long exitKey;
+    }
+
+    /**
+     * Collects the rings of a polygon: splits them into simple rings, drops collinear vertices and simplifies them
+     */
+    private class PolygonBuilder {
+
+        private long[] shell;
+        private int shells;
+        private final List<long[]> holes = new ArrayList<>();
+        private long cells;
+
+        void addRing(LongList ring) {
+            // a ring touches itself only on saddle vertices: cut out the loop between two visits of one
+            LongList stack = new LongList();
+            Map<Long, Integer> saddles = new HashMap<>();
+            for (int i = 0; i < ring.size(); i++) {
+                long vertex = ring.get(i);
+                if (vertex < 0) {
+                    Integer previous = saddles.get(vertex);
+                    if (previous != null) {
+                        addLoop(stack, previous, stack.size());
+                        for (int j = previous + 1; j < stack.size(); j++) {
+                            if (stack.get(j) < 0) saddles.remove(stack.get(j));
+                        }
+                        stack.truncate(previous + 1);
+                        continue;
+                    }
+                    saddles.put(vertex, stack.size());
+                }
+                stack.add(vertex);
+            }
+            addLoop(stack, 0, stack.size());
+        }
+
+        private void addLoop(LongList vertices, int from, int to) {
+            LongList loop = new LongList();
+            for (int i = from; i < to; i++) {
+                loop.add(vertices.get(i) & ~SADDLE);
+                while (loop.size() >= 3 && isCollinear(loop.get(loop.size() - 3), loop.get(loop.size() - 2), loop.get(loop.size() - 1))) {
+                    loop.removeAt(loop.size() - 2);
+                }
+            }
+            while (loop.size() >= 3 && isCollinear(loop.get(loop.size() - 2), loop.get(loop.size() - 1), loop.get(0))) loop.removeLast();
+            while (loop.size() >= 3 && isCollinear(loop.get(loop.size() - 1), loop.get(0), loop.get(1))) loop.removeAt(0);
+            if (loop.size() < 3) return;
+
+            long area = 0;
+            for (int i = 0; i < loop.size(); i++) {
+                long a = loop.get(i);
+                long b = loop.get((i + 1) % loop.size());
+                area += (long) getX(a) * getY(b) - (long) getX(b) * getY(a);
+            }
+            // outer rings are counter-clockwise on the map, so clockwise down the rows of the raster
+            cells -= area / 2;
+            long[] simplified = simplify(loop.toArray(), area);
+            if (area < 0) {
+                shells++;
+                shell = simplified;
+            } else if (simplified != null) {
+                holes.add(simplified);
+            }
+        }
+
+        Polygon build() {
+            if (shells != 1) throw new IllegalStateException("Polygon with " + shells + " outer rings");
+            if (shell == null) return null;
+            List<long[]> rings = new ArrayList<>(1 + holes.size());
+            rings.add(shell);
+            rings.addAll(holes);
+            return new Polygon(rings, cells);
+        }
+    }
+
+    /**
+     * Douglas-Peucker simplification of a ring
+     * @param area twice the signed area of the ring
+     * @return the simplified ring, or null if less than three vertices remain or the ring collapses or turns inside out
+     */
+    private long[] simplify(long[] ring, long area) {
+        if (tolerance <= 0) return ring;
+        int n = ring.length;
+        // anchors: the first vertex and the vertex farthest from it
+        int far = 0;
+        double farthest = -1;
+        for (int i = 1; i < n; i++) {
+            double dx = getX(ring[i]) - getX(ring[0]);
+            double dy = getY(ring[i]) - getY(ring[0]);
+            if (dx * dx + dy * dy > farthest) {
+                farthest = dx * dx + dy * dy;
+                far = i;
+            }
+        }
+        boolean[] keep = new boolean[n + 1];
+        keep[0] = true;
+        keep[far] = true;
+        keep[n] = true;
+        ArrayDeque<int[]> sections = new ArrayDeque<>();
+        sections.push(new int[]{0, far});
+        sections.push(new int[]{far, n});
+        while (!sections.isEmpty()) {
+            int[] section = sections.pop();
+            long a = ring[section[0]];
+            long b = ring[section[1] % n];
+            int worst = -1;
+            double worstDistance = tolerance;
+            for (int i = section[0] + 1; i < section[1]; i++) {
+                double distance = getDistance(ring[i], a, b);
+                if (distance > worstDistance) {
+                    worstDistance = distance;
+                    worst = i;
+                }
+            }
+            if (worst >= 0) {
+                keep[worst] = true;
+                sections.push(new int[]{section[0], worst});
+                sections.push(new int[]{worst, section[1]});
+            }
+        }
+        LongList simplified = new LongList();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) simplified.add(ring[i]);
+        }
+        if (simplified.size() < 3) return null;
+        // a thin ring can lose its area or change its orientation when its far side moves onto or over the near side
+        long simplifiedArea = 0;
+        for (int i = 0; i < simplified.size(); i++) {
+            long a = simplified.get(i);
+            long b = simplified.get((i + 1) % simplified.size());
+            simplifiedArea += (long) getX(a) * getY(b) - (long) getX(b) * getY(a);
+        }
+        return Long.signum(simplifiedArea) == Long.signum(area) ? simplified.toArray() : null;
+    }
+
+    /**
+     * @return distance of a vertex from the segment between two vertices, in cells
+     */
+    private static double getDistance(long vertex, long a, long b) {
+        double px = getX(vertex) - getX(a);
+        double py = getY(vertex) - getY(a);
+        double dx = getX(b) - getX(a);
+        double dy = getY(b) - getY(a);
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+    private static boolean isCollinear(long a, long b, long c) {
+        long abX = getX(b) - getX(a);
+        long abY = getY(b) - getY(a);
+        long bcX = getX(c) - getX(b);
+        long bcY = getY(c) - getY(b);
+        return abX * bcY - abY * bcX == 0;
+    }
+
+    /**
+     * Outer ring followed by the holes, as vertices without the closing one, and the number of cells of the polygon
+     */
+    private static class Polygon {
+
+        private final List<long[]> rings;
+        private final long cells;
+
+        Polygon(List<long[]> rings, long cells) {
+            this.rings = rings;
+            this.cells = cells;
+        }
+
+        int getVertexCount() {
+            int count = 0;
+            for (long[] ring : rings) count += ring.length + 1;
+            return count;
+        }
+    }
+
+    /**
+     * Growable array of packed vertices
+     */
+    private static class LongList {
+
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        void removeAt(int index) {
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+        }
+
+        void truncate(int newSize) {
+            size = newSize;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
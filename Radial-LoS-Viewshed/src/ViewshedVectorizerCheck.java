@@ -0,0 +1,249 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Property check of {@link ViewshedVectorizer} on random results of both kinds (visible cells and required heights),
+ * from sparse noise with diagonal touches to dense areas with holes, and across several strips of rows. The WKB
+ * polygons are rasterized again with an even-odd scanline fill and must cover exactly the selected cells, every cell
+ * once, with one polygon per 4-connected area. Rings must be closed and simple, outer rings counter-clockwise and holes
+ * clockwise, and the {@code cells} of the GeoJSON features must match the areas. Simplified output is checked for
+ * closed rings and orientation only. Prints every failing case and exits with status 1 if there is one.
+ * java ViewshedVectorizerCheck [seed] [cases]
+ */
+public class ViewshedVectorizerCheck {
+
+    private static final double[] TOLERANCES = {0.5, 1, 2};
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int cases = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        Random random = new Random(seed);
+        int failures = 0;
+        for (int i = 0; i < cases; i++) {
+            int width = 1 + random.nextInt(150);
+            int height = 1 + random.nextInt(300);
+            boolean heights = random.nextBoolean();
+            ViewshedResult result = new ViewshedResult(width, height, heights ? 0 : 1, 10, 10 + 0.25 * width, 40 - 0.125 * height, 40);
+            boolean[][] selected = fill(result, heights, random);
+            int maxRequiredHeight = heights ? 4 : 0;
+            String error = check(result, selected, maxRequiredHeight);
+            if (error != null) {
+                System.out.println("FAIL case " + i + " (" + width + "x" + height + (heights ? ", heights" : "") + "): " + error);
+                failures++;
+            }
+        }
+        System.out.println(cases + " cases, " + failures + " failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Fill a result with random noise, blobs or both
+     * @return the cells that the polygons have to cover
+     */
+    private static boolean[][] fill(ViewshedResult result, boolean heights, Random random) {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        double density = random.nextDouble();
+        int blobs = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(20);
+        boolean[][] selected = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean inside = random.nextDouble() < (blobs > 0 ? density / 4 : density);
+                for (int blob = 0; blob < blobs && !inside; blob++) {
+                    // blobs with the same seeds per case, rings of them leave holes
+                    Random shape = new Random(blob * 31L + width);
+                    double dx = x - shape.nextInt(width);
+                    double dy = y - shape.nextInt(height);
+                    double radius = 3 + shape.nextInt(30);
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    inside = distance < radius && (blob % 2 == 0 || distance > radius / 2);
+                }
+                if (heights) {
+                    // selected cells have a required height of at most 4, the others are higher or have none
+                    if (inside) {
+                        result.recordHeight(x, y, random.nextInt(5));
+                    } else if (random.nextBoolean()) {
+                        result.recordHeight(x, y, 5 + random.nextInt(5));
+                    }
+                } else if (inside) {
+                    result.markVisible(x, y);
+                }
+                selected[y][x] = inside;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return description of the first violated property, or null
+     */
+    private static String check(ViewshedResult result, boolean[][] selected, int maxRequiredHeight) throws IOException {
+        int width = result.getWidth();
+        int height = result.getHeight();
+        // 4-connected areas of the selected cells
+        int[][] areas = new int[height][width];
+        List<Integer> areaCells = new ArrayList<>();
+        areaCells.add(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (selected[y][x] && areas[y][x] == 0) areaCells.add(label(selected, areas, x, y, areaCells.size()));
+            }
+        }
+
+        ByteArrayOutputStream wkb = new ByteArrayOutputStream();
+        int count = new ViewshedVectorizer(result, maxRequiredHeight, 0).write(wkb, ViewshedVectorizer.FORMAT_WKB);
+        if (count != areaCells.size() - 1) return count + " polygons for " + (areaCells.size() - 1) + " areas";
+        ByteBuffer buffer = ByteBuffer.wrap(wkb.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.get() != 1 || buffer.getInt() != 6 || buffer.getInt() != count) return "bad multipolygon header";
+
+        int[][] cover = new int[height][width];
+        int[] polygonCells = new int[count];
+        for (int polygon = 0; polygon < count; polygon++) {
+            if (buffer.get() != 1 || buffer.getInt() != 3) return "bad polygon header";
+            List<int[][]> rings = new ArrayList<>();
+            for (int ring = buffer.getInt(); ring > 0; ring--) {
+                int[][] points = readRing(buffer, result);
+                String error = checkRing(points, rings.isEmpty(), true);
+                if (error != null) return "polygon " + polygon + ", ring " + rings.size() + ": " + error;
+                rings.add(points);
+            }
+            // even-odd scanline fill of the cell centers with the vertical edges of all rings
+            Map<Integer, List<Integer>> crossings = new HashMap<>();
+            for (int[][] ring : rings) {
+                for (int i = 0; i < ring.length - 1; i++) {
+                    if (ring[i][0] != ring[i + 1][0]) continue;
+                    for (int y = Math.min(ring[i][1], ring[i + 1][1]); y < Math.max(ring[i][1], ring[i + 1][1]); y++) {
+                        crossings.computeIfAbsent(y, key -> new ArrayList<>()).add(ring[i][0]);
+                    }
+                }
+            }
+            int area = -1;
+            for (Map.Entry<Integer, List<Integer>> row : crossings.entrySet()) {
+                List<Integer> xs = row.getValue();
+                Collections.sort(xs);
+                int y = row.getKey();
+                if (y < 0 || y >= height || xs.size() % 2 != 0) return "polygon " + polygon + " has bad edges in row " + y;
+                for (int i = 0; i < xs.size(); i += 2) {
+                    for (int x = xs.get(i); x < xs.get(i + 1); x++) {
+                        if (x < 0 || x >= width || !selected[y][x]) return "polygon " + polygon + " covers cell " + x + "/" + y;
+                        if (area < 0) area = areas[y][x];
+                        else if (area != areas[y][x]) return "polygon " + polygon + " covers several areas";
+                        cover[y][x]++;
+                        polygonCells[polygon]++;
+                    }
+                }
+            }
+        }
+        if (buffer.hasRemaining()) return "data after the multipolygon";
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (cover[y][x] != (selected[y][x] ? 1 : 0)) return "cell " + x + "/" + y + " covered " + cover[y][x] + " times";
+            }
+        }
+
+        // the features come in the same order as the polygons
+        ByteArrayOutputStream geoJson = new ByteArrayOutputStream();
+        new ViewshedVectorizer(result, maxRequiredHeight, 0).write(geoJson, ViewshedVectorizer.FORMAT_GEOJSON);
+        String json = new String(geoJson.toByteArray(), StandardCharsets.UTF_8);
+        int feature = 0;
+        for (int i = json.indexOf("\"cells\":"); i >= 0; i = json.indexOf("\"cells\":", i + 1), feature++) {
+            long cells = Long.parseLong(json.substring(i + 8, json.indexOf('}', i)).trim());
+            if (feature >= count || cells != polygonCells[feature]) return "feature " + feature + " has " + cells + " cells";
+        }
+        if (feature != count) return feature + " features for " + count + " polygons";
+
+        ByteArrayOutputStream wkt = new ByteArrayOutputStream();
+        if (new ViewshedVectorizer(result, maxRequiredHeight, 0).write(wkt, ViewshedVectorizer.FORMAT_WKT) != count
+                || wkt.toString(StandardCharsets.UTF_8.name()).lines().filter(line -> line.startsWith("POLYGON")).count() != count) {
+            return "WKT does not have " + count + " polygons";
+        }
+
+        for (double tolerance : TOLERANCES) {
+            ByteArrayOutputStream simplified = new ByteArrayOutputStream();
+            int polygons = new ViewshedVectorizer(result, maxRequiredHeight, tolerance).write(simplified, ViewshedVectorizer.FORMAT_WKB);
+            if (polygons > count) return polygons + " simplified polygons for " + count + " areas";
+            ByteBuffer simple = ByteBuffer.wrap(simplified.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            simple.position(9);
+            for (int polygon = 0; polygon < polygons; polygon++) {
+                simple.position(simple.position() + 5);
+                int rings = simple.getInt();
+                for (int ring = 0; ring < rings; ring++) {
+                    String error = checkRing(readRing(simple, result), ring == 0, false);
+                    if (error != null) return "tolerance " + tolerance + ", polygon " + polygon + ", ring " + ring + ": " + error;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Label the 4-connected area of a cell
+     * @return number of cells of the area
+     */
+    private static int label(boolean[][] selected, int[][] areas, int startX, int startY, int area) {
+        int cells = 0;
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        areas[startY][startX] = area;
+        queue.add(new int[]{startX, startY});
+        while (!queue.isEmpty()) {
+            int[] cell = queue.poll();
+            cells++;
+            for (int[] step : new int[][]{{1, 0}, {-1, 0}, {0, 1}, {0, -1}}) {
+                int x = cell[0] + step[0];
+                int y = cell[1] + step[1];
+                if (y >= 0 && y < selected.length && x >= 0 && x < selected[0].length && selected[y][x] && areas[y][x] == 0) {
+                    areas[y][x] = area;
+                    queue.add(new int[]{x, y});
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Read the points of a WKB ring as cell corners (x to the east, y down the raster)
+     */
+    private static int[][] readRing(ByteBuffer buffer, ViewshedResult result) {
+        double lonStep = (result.getMaxLon() - result.getMinLon()) / result.getWidth();
+        double latStep = (result.getMaxLat() - result.getMinLat()) / result.getHeight();
+        int[][] points = new int[buffer.getInt()][2];
+        for (int[] point : points) {
+            point[0] = (int) Math.rint((buffer.getDouble() - result.getMinLon()) / lonStep);
+            point[1] = (int) Math.rint((result.getMaxLat() - buffer.getDouble()) / latStep);
+        }
+        return points;
+    }
+
+    /**
+     * @param outer whether the ring is the outer ring of its polygon
+     * @param simple whether the ring must not touch itself
+     * @return description of the problem of a ring, or null
+     */
+    private static String checkRing(int[][] points, boolean outer, boolean simple) {
+        int n = points.length;
+        if (n < 4) return n + " points";
+        if (points[0][0] != points[n - 1][0] || points[0][1] != points[n - 1][1]) return "not closed";
+        Set<Long> seen = new HashSet<>();
+        // twice the signed area with y up (north), positive for counter-clockwise rings
+        long area = 0;
+        for (int i = 0; i < n - 1; i++) {
+            if (simple && !seen.add(((long) points[i][0] << 32) | (points[i][1] & 0xFFFFFFFFL))) return "touches itself";
+            area += (long) points[i][0] * -points[i + 1][1] - (long) points[i + 1][0] * -points[i][1];
+        }
+        if (area == 0) return "no area";
+        if (outer != area > 0) return outer ? "outer ring is clockwise" : "hole is counter-clockwise";
+        return null;
+    }
+}
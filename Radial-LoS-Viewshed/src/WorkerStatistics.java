@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rays cast, cells traversed and written, and busy time of every worker thread of a ForkJoinPool. Each worker only writes its own slot,
+ * which is padded to its own cache line, so recording does not contend between threads.
+ * <p>
+ * The slots are handed out densely in the order in which the threads record their first batch (the pool indices of the
+ * workers are not dense). Threads beyond the expected number of workers, e.g. compensation threads of a blocked pool,
+ * share one extra slot that is updated under a lock.
+ */
+public class WorkerStatistics {
+
+    // longs per slot, 64 bytes
+    private static final int PADDING = 8;
+    private final int workers;
+    private final long[] rays;
+    private final long[] cells;
+    private final long[] writes;
+    private final long[] busyNanos;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final ThreadLocal<Integer> slot = ThreadLocal.withInitial(nextSlot::getAndIncrement);
+
+    /**
+     * @param workers expected number of worker threads, usually the parallelism of the pool
+     */
+    public WorkerStatistics(int workers) {
+        this.workers = workers;
+        // plus the shared slot of any further threads
+        this.rays = new long[(workers + 1) * PADDING];
+        this.cells = new long[(workers + 1) * PADDING];
+        this.writes = new long[(workers + 1) * PADDING];
+        this.busyNanos = new long[(workers + 1) * PADDING];
+    }
+
+    /**
+     * Record a finished batch of rays of the current thread
+     * @param rayCount number of rays in the batch
+     * @param nanos time taken by the batch
+     */
+    public void record(int rayCount, long nanos) {
+        record(rayCount, 0, 0, nanos);
+    }
+
+    /**
+     * Record a finished batch of rays of the current thread
+     * @param rayCount number of rays in the batch
+     * @param cellCount number of cells the rays traversed (evaluated)
+     * @param writeCount number of writes of the rays into the result
+     * @param nanos time taken by the batch
+     */
+    public void record(int rayCount, long cellCount, long writeCount, long nanos) {
+        int worker = slot.get();
+        if (worker < workers) {
+            add(worker, rayCount, cellCount, writeCount, nanos);
+        } else {
+            synchronized (this) {
+                add(workers, rayCount, cellCount, writeCount, nanos);
+            }
+        }
+    }
+
+    private void add(int worker, int rayCount, long cellCount, long writeCount, long nanos) {
+        rays[worker * PADDING] += rayCount;
+        cells[worker * PADDING] += cellCount;
+        writes[worker * PADDING] += writeCount;
+        busyNanos[worker * PADDING] += nanos;
+    }
+
+    public long getRays(int worker) {
+        return rays[worker * PADDING];
+    }
+
+    public long getCells(int worker) {
+        return cells[worker * PADDING];
+    }
+
+    public long getWrites(int worker) {
+        return writes[worker * PADDING];
+    }
+
+    public long getBusyNanos(int worker) {
+        return busyNanos[worker * PADDING];
+    }
+
+    public long getTotalRays() {
+        return sum(rays);
+    }
+
+    public long getTotalCells() {
+        return sum(cells);
+    }
+
+    public long getTotalWrites() {
+        return sum(writes);
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (int i = 0; i < values.length; i += PADDING) total += values[i];
+        return total;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Print rays and busy time per thread, as well as the spread between the busiest and the idlest thread
+     */
+    public void print() {
+        long max = 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < workers; i++) {
+            System.out.println("Thread " + i + " cast " + getRays(i) + " rays over " + getCells(i) + " cells, busy " + getBusyNanos(i) / 1000000.0 + " milliseconds");
+            max = Math.max(max, getBusyNanos(i));
+            min = Math.min(min, getBusyNanos(i));
+        }
+        if (getRays(workers) > 0 || getCells(workers) > 0) {
+            System.out.println("Other threads cast " + getRays(workers) + " rays over " + getCells(workers) + " cells, busy " + getBusyNanos(workers) / 1000000.0 + " milliseconds");
+        }
+        System.out.println("Busy time spread between threads: " + (max - min) / 1000000.0 + " milliseconds");
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * XDraw: the grid is swept in concentric square rings around the cell of the observer. The line of sight to a cell
+ * of ring k crosses ring k - 1 between two adjacent cells, and the horizon of the cell (the maximum slope on its
+ * line of sight) is interpolated from their horizons instead of walking the line. Every cell is therefore evaluated
+ * exactly once with a handful of operations. It is approximate: the interpolation smooths the horizon, so cells just
+ * above or below it can flip.
+ * <p>
+ * The rays of {@link R3Engine} only go to the peripheral cells and skip occluded blocks through the elevation pyramid,
+ * so XDraw is not faster in general. Measured on one core with {@link EngineComparison} on a 30 m DEM, at 20 km and
+ * 50 km: 0.83-0.96x the speed of R3 in mode 1, with 0.5-1.1% of the visible cells missed and 5-7% extra; 0.85-1.18x
+ * in mode 0, with a mean height error of 0.5-0.6 m (up to about 900 m at single cells behind ridges).
+ * <p>
+ * The cells of a ring only depend on the previous ring, so every ring is split between the threads. Horizons are
+ * kept as a float per cell of the grid.
+ */
+public class XDrawEngine implements ViewshedEngine {
+
+    // cells of a ring per task
+    private static final int CHUNK = 2048;
+
+    @Override
+    public String getName() {
+        return "XDraw";
+    }
+
+    @Override
+    public void calculate(SpatialUtils su, ObserverGeometry geometry, DemMosaic dem, double radius, double targetHeight, int mode,
+                          int parallelism, WorkerStatistics statistics) {
+        Sweep sweep = new Sweep(su, geometry, dem, radius, targetHeight, mode);
+        int rings = Math.max(Math.max(sweep.centerX, su.gridWidth - 1 - sweep.centerX),
+                Math.max(sweep.centerY, su.gridHeight - 1 - sweep.centerY));
+        sweep.evaluate(0, 0, 1, statistics);
+        for (int k = 1; k <= rings; k++) {
+            int cells = 8 * k;
+            if (cells <= CHUNK) sweep.evaluate(k, 0, cells, statistics);
+            else new RingTask(sweep, k, 0, cells, statistics).invoke();
+        }
+
+        if (mode == 3) {
+            // only the peripheral cells are targets
+            PerimeterRing ring = new PerimeterRing(geometry, radius, su.gridWidth, su.gridHeight);
+            for (int i = 0; i < ring.size(); i++) {
+                int x = ring.getX(i);
+                int y = ring.getY(i);
+                if (sweep.getSlope(x, y) > sweep.getHorizonBefore(x, y)) su.getResult().markVisible(x, y);
+            }
+        }
+    }
+
+    /**
+     * State of the sweep of one observer
+     */
+    private static class Sweep {
+
+        private final SpatialUtils su;
+        private final ObserverGeometry geometry;
+        private final DemMosaic dem;
+        private final double radius;
+        private final double targetHeight;
+        private final int mode;
+        private final double observerHeight;
+        private final int centerX;
+        private final int centerY;
+        private final int width;
+        // maximum slope on the line of sight of every cell, up to and including the cell
+        private final float[] horizons;
+
+        Sweep(SpatialUtils su, ObserverGeometry geometry, DemMosaic dem, double radius, double targetHeight, int mode) {
+            this.su = su;
+            this.geometry = geometry;
+            this.dem = dem;
+            this.radius = radius;
+            this.targetHeight = targetHeight;
+            this.mode = mode;
+            this.observerHeight = geometry.getObserver().getHeight();
+            this.centerX = Math.max(0, Math.min(su.gridWidth - 1, (int) geometry.getObserverX()));
+            this.centerY = Math.max(0, Math.min(su.gridHeight - 1, (int) geometry.getObserverY()));
+            this.width = su.gridWidth;
+            this.horizons = new float[su.gridWidth * su.gridHeight];
+        }
+
+        /**
+         * Evaluate a range of the cells of a ring, which are numbered clockwise from its north-western corner
+         * @param k ring (Chebyshev distance from the cell of the observer)
+         * @param start first cell (inclusive)
+         * @param end last cell (exclusive)
+         * @param statistics per-thread statistics, may be null
+         */
+        void evaluate(int k, int start, int end, WorkerStatistics statistics) {
+            long batchStart = System.nanoTime();
+            long counts = evaluate(k, start, end);
+            if (statistics != null) {
+                statistics.record(0, SpatialUtils.getTraversedCells(counts), SpatialUtils.getWrittenCells(counts),
+                        System.nanoTime() - batchStart);
+            }
+        }
+
+        private long evaluate(int k, int start, int end) {
+            if (k == 0) return evaluateCell(0, centerX, centerY);
+            long counts = 0;
+            int side = 2 * k;
+            // the sides in turn: top to the east, right to the south, bottom to the west, left to the north
+            for (int i = start; i < end; ) {
+                int position = i % side;
+                int count = Math.min(end - i, side - position);
+                switch (i / side) {
+                    case 0:
+                        for (int j = 0; j < count; j++) counts += evaluateCell(k, centerX - k + position + j, centerY - k);
+                        break;
+                    case 1:
+                        for (int j = 0; j < count; j++) counts += evaluateCell(k, centerX + k, centerY - k + position + j);
+                        break;
+                    case 2:
+                        for (int j = 0; j < count; j++) counts += evaluateCell(k, centerX + k - position - j, centerY + k);
+                        break;
+                    default:
+                        for (int j = 0; j < count; j++) counts += evaluateCell(k, centerX - k, centerY + k - position - j);
+                        break;
+                }
+                i += count;
+            }
+            return counts;
+        }
+
+        /**
+         * Evaluate a cell of a ring
+         * @return cells evaluated and written, see {@link SpatialUtils#getTraversedCells}
+         */
+        private long evaluateCell(int k, int x, int y) {
+            if (x < 0 || y < 0 || x >= su.gridWidth || y >= su.gridHeight) return 0;
+            double distance = geometry.getDistance(x, y);
+            double curvature = geometry.getCurvatureDrop(distance);
+            double slope = (dem.getElevation(x, y) - curvature - observerHeight) / distance;
+            double horizon = k == 0 ? Double.NEGATIVE_INFINITY : getHorizonBefore(x, y);
+            // the observer's own corner has no direction (NaN), so it cannot raise the horizon
+            horizons[y * width + x] = (float) (slope > horizon ? slope : horizon);
+            if (distance > radius) return SpatialUtils.getCounts(1, 0);
+
+            double visibilitySlope = k == 0 ? SpatialUtils.INITIAL_VISIBILITY_SLOPE : horizon;
+            ViewshedResult result = su.getResult();
+            switch (mode) {
+                case 0:
+                    result.recordHeight(x, y, (int) (observerHeight + distance * visibilitySlope + curvature));
+                    return SpatialUtils.getCounts(1, 1);
+                case 1:
+                    if (slope > horizon) {
+                        result.markVisible(x, y);
+                        return SpatialUtils.getCounts(1, 1);
+                    }
+                    break;
+                case 2: {
+                    int visibilityElevation = (int) (observerHeight + distance * visibilitySlope + curvature);
+                    if (visibilityElevation >= targetHeight) {
+                        result.recordHeight(x, y, visibilityElevation);
+                        return SpatialUtils.getCounts(1, 1);
+                    }
+                    break;
+                }
+            }
+            return SpatialUtils.getCounts(1, 0);
+        }
+
+        /**
+         * @return slope of a cell as seen from the observer
+         */
+        double getSlope(int x, int y) {
+            double distance = geometry.getDistance(x, y);
+            return (dem.getElevation(x, y) - geometry.getCurvatureDrop(distance) - observerHeight) / distance;
+        }
+
+        /**
+         * Interpolate the horizon in front of a cell from the two cells of the previous ring that its line of sight
+         * passes between. The previous ring must have been evaluated.
+         * @return maximum slope on the line of sight before the cell
+         */
+        double getHorizonBefore(int x, int y) {
+            int dx = x - centerX;
+            int dy = y - centerY;
+            int k = Math.max(Math.abs(dx), Math.abs(dy));
+            if (k == 0) return Double.NEGATIVE_INFINITY;
+            double scale = (k - 1.0) / k;
+            if (Math.abs(dx) == k) {
+                int column = centerX + Integer.signum(dx) * (k - 1);
+                double row = centerY + dy * scale;
+                int row0 = (int) Math.floor(row);
+                double weight = row - row0;
+                double horizon = horizons[row0 * width + column];
+                return weight == 0 ? horizon : horizon + weight * (horizons[(row0 + 1) * width + column] - horizon);
+            }
+            int row = centerY + Integer.signum(dy) * (k - 1);
+            double column = centerX + dx * scale;
+            int column0 = (int) Math.floor(column);
+            double weight = column - column0;
+            double horizon = horizons[row * width + column0];
+            return weight == 0 ? horizon : horizon + weight * (horizons[row * width + column0 + 1] - horizon);
+        }
+    }
+
+    /**
+     * Fork-join task evaluating a range of the cells of a ring
+     */
+    private static class RingTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Sweep sweep;
+        private final int k;
+        private final int start;
+        private final int end;
+        private final WorkerStatistics statistics;
+
+        RingTask(Sweep sweep, int k, int start, int end, WorkerStatistics statistics) {
+            this.sweep = sweep;
+            this.k = k;
+            this.start = start;
+            this.end = end;
+            this.statistics = statistics;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > CHUNK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RingTask(sweep, k, start, middle, statistics), new RingTask(sweep, k, middle, end, statistics));
+                return;
+            }
+            sweep.evaluate(k, start, end, statistics);
+        }
+    }
+}